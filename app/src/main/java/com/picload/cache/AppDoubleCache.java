@@ -3,19 +3,54 @@ package com.picload.cache;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
 
 import androidx.fragment.app.FragmentActivity;
 
+import com.picload.models.EntryMetadata;
 import com.picload.ui.RetainFragment;
+import com.picload.utils.AppExecutor;
 
-public class AppDoubleCache implements ImageCache, ImageCache.UpdateInMemoryCache {
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class AppDoubleCache implements ImageCache, ImageCache.UpdateInMemoryCache, ImageCache.Tiered,
+        ImageCache.Revalidatable, ImageCache.Resumable {
+
+    private static final String TAG = "AppDoubleCache";
+    private static final String HOT_SET_FILENAME = "hot_set";
+    private static final int MAX_HOT_SET_KEYS = 256;
+    private static final long RESTORE_TIME_BUDGET_MS = 500;
+    private static final long DISK_CACHE_SIZE = 10 * 1024 * 1024;
 
     private InMemoryCache memoryCache;
     private DiskLruCache diskLruCache;
+    private final File hotSetFile;
 
-    private AppDoubleCache(Context context) {
-        diskLruCache = DiskLruCache.openCache(context.getCacheDir(), 10 * 1024 * 1024);
+    /**
+     * Set once the hot set is saved and cleared by the next insert in memory. A background
+     * episode brings several trim callbacks, only the first one sees the untrimmed memory cache,
+     * the following ones and onDestroy must not overwrite its hot set with a trimmed one.
+     */
+    private volatile boolean hotSetSaved;
+
+    private AppDoubleCache(Context context, boolean sharedDiskCache) {
+        diskLruCache = sharedDiskCache
+                ? DiskLruCache.openSharedCache(context.getCacheDir(), DISK_CACHE_SIZE)
+                : DiskLruCache.openCache(context.getCacheDir(), DISK_CACHE_SIZE);
         memoryCache = new InMemoryCache();
+        hotSetFile = new File(context.getCacheDir(), HOT_SET_FILENAME);
     }
 
     /**
@@ -24,6 +59,16 @@ public class AppDoubleCache implements ImageCache, ImageCache.UpdateInMemoryCach
      * @param activity instance of activity.
      */
     public static AppDoubleCache findOrCreateCache(FragmentActivity activity) {
+        return findOrCreateCache(activity, false);
+    }
+
+    /**
+     * Finding the retained instance or creating new if not found any.
+     *
+     * @param activity        instance of activity.
+     * @param sharedDiskCache true when other processes of the app use the disk cache too.
+     */
+    public static AppDoubleCache findOrCreateCache(FragmentActivity activity, boolean sharedDiskCache) {
         // Search for, or create an instance of the non-UI RetainFragment
         final RetainFragment mRetainFragment = RetainFragment.findOrCreateRetainFragment(
                 activity.getSupportFragmentManager());
@@ -33,37 +78,287 @@ public class AppDoubleCache implements ImageCache, ImageCache.UpdateInMemoryCach
 
         // No existing ImageCache, create one and store it in RetainFragment
         if (imageCache == null) {
-            imageCache = new AppDoubleCache(activity.getApplicationContext());
+            imageCache = new AppDoubleCache(activity.getApplicationContext(), sharedDiskCache);
             mRetainFragment.setObject(imageCache);
+            imageCache.restoreHotSet();
         }
         return imageCache;
     }
 
+    /**
+     * Creates a cache sharing its disk tier with the other processes of the app, for components
+     * without an activity such as a widget or a sync service. The memory tier stays per process.
+     *
+     * @param context any context of the app.
+     */
+    public static AppDoubleCache createShared(Context context) {
+        return new AppDoubleCache(context.getApplicationContext(), true);
+    }
+
     @Override
     public void put(String url, Bitmap bitmap) {
         if (memoryCache != null)
             memoryCache.put(url, bitmap);
+        hotSetSaved = false;
         if (diskLruCache != null)
             diskLruCache.put(url, bitmap);
     }
 
     @Override
     public Bitmap get(String url) {
-        if (memoryCache != null && memoryCache.get(url) != null)
-            return memoryCache.get(url);
-        else if (diskLruCache != null && diskLruCache.get(url) != null)
-            return diskLruCache.get(url);
-        return null;
+        Bitmap bitmap = memoryCache != null ? memoryCache.get(url) : null;
+        if (bitmap == null && diskLruCache != null)
+            bitmap = diskLruCache.get(url);
+        return bitmap;
+    }
+
+    @Override
+    public void putAll(Map<String, Bitmap> bitmaps) {
+        if (memoryCache != null)
+            memoryCache.putAll(bitmaps);
+        hotSetSaved = false;
+        if (diskLruCache != null)
+            diskLruCache.putAll(bitmaps);
+    }
+
+    /**
+     * Resolves memory hits first and only goes to disk for the remaining urls. Disk hits are
+     * promoted to the memory cache.
+     */
+    @Override
+    public Map<String, Bitmap> getAll(Collection<String> urls) {
+        Map<String, Bitmap> result = getAllFromMemory(urls);
+        if (diskLruCache == null || result.size() == urls.size())
+            return result;
+        List<String> missing = missingFrom(result, urls);
+        Map<String, Bitmap> diskHits = diskLruCache.getAll(missing);
+        if (memoryCache != null && !diskHits.isEmpty()) {
+            memoryCache.putAll(diskHits);
+            hotSetSaved = false;
+        }
+        result.putAll(diskHits);
+        return result;
+    }
+
+    @Override
+    public boolean containsAll(Collection<String> urls) {
+        List<String> missing = missingFrom(getAllFromMemory(urls), urls);
+        if (missing.isEmpty())
+            return true;
+        return diskLruCache != null && diskLruCache.containsAll(missing);
+    }
+
+    private static List<String> missingFrom(Map<String, Bitmap> found, Collection<String> urls) {
+        List<String> missing = new ArrayList<>();
+        for (String url : urls) {
+            if (!found.containsKey(url))
+                missing.add(url);
+        }
+        return missing;
+    }
+
+    @Override
+    public Bitmap getFromMemory(String url) {
+        return memoryCache != null ? memoryCache.get(url) : null;
+    }
+
+    @Override
+    public void putInMemory(String url, Bitmap bitmap) {
+        if (memoryCache != null)
+            memoryCache.put(url, bitmap);
+        hotSetSaved = false;
+    }
+
+    @Override
+    public Map<String, Bitmap> getAllFromMemory(Collection<String> urls) {
+        if (memoryCache == null)
+            return new HashMap<>();
+        return memoryCache.getAll(urls);
+    }
+
+    /**
+     * Stores the bitmap in both tiers, replacing any existing entry for the url.
+     */
+    @Override
+    public void put(String url, Bitmap bitmap, EntryMetadata metadata) {
+        if (memoryCache != null)
+            memoryCache.put(url, bitmap);
+        hotSetSaved = false;
+        if (diskLruCache != null)
+            diskLruCache.put(url, bitmap, metadata);
+    }
+
+    @Override
+    public EntryMetadata getMetadata(String url) {
+        return diskLruCache != null ? diskLruCache.getMetadata(url) : null;
+    }
+
+    @Override
+    public void updateMetadata(String url, EntryMetadata metadata) {
+        if (diskLruCache != null)
+            diskLruCache.updateMetadata(url, metadata);
+    }
+
+    @Override
+    public File getPartialFile(String url) {
+        return diskLruCache != null ? diskLruCache.getPartialFile(url) : null;
+    }
+
+    @Override
+    public EntryMetadata getPartialMetadata(String url) {
+        return diskLruCache != null ? diskLruCache.getPartialMetadata(url) : null;
+    }
+
+    @Override
+    public void savePartialMetadata(String url, EntryMetadata metadata) {
+        if (diskLruCache != null)
+            diskLruCache.savePartialMetadata(url, metadata);
+    }
+
+    @Override
+    public File getFile(String url) {
+        return diskLruCache != null ? diskLruCache.getFile(url) : null;
+    }
+
+    @Override
+    public Closeable lockDownload(String url) {
+        return diskLruCache != null ? diskLruCache.lockDownload(url) : null;
+    }
+
+    @Override
+    public File commitDownload(String url, File partialFile, EntryMetadata metadata) {
+        return diskLruCache != null ? diskLruCache.commitDownload(url, partialFile, metadata) : null;
+    }
+
+    @Override
+    public void remove(String url) {
+        if (diskLruCache != null)
+            diskLruCache.remove(url);
     }
 
     @Override
     public void clear() {
         memoryCache.clear();
         diskLruCache.clearCache();
+        hotSetFile.delete();
+    }
+
+    /**
+     * Saves the keys of the memory cache, most recent first, so the next process can warm its
+     * memory cache from disk. Call before the memory cache is trimmed or the activity destroyed.
+     * The keys are read right away and written on a background thread. Nothing is written when
+     * the memory cache is empty or nothing was loaded since the last save.
+     */
+    public void saveHotSet() {
+        if (memoryCache == null || hotSetSaved)
+            return;
+        final List<String> keys = memoryCache.hotKeys();
+        if (keys.isEmpty())
+            return;
+        hotSetSaved = true;
+        AppExecutor.submitLowPriorityTask(new Runnable() {
+            @Override
+            public void run() {
+                writeHotSet(keys);
+            }
+        });
     }
 
+    private void writeHotSet(List<String> keys) {
+        File tmpFile = new File(hotSetFile.getPath() + ".tmp");
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(tmpFile));
+            for (int i = 0; i < keys.size() && i < MAX_HOT_SET_KEYS; i++) {
+                writer.write(keys.get(i));
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+            // Rename so a process killed mid write never leaves a truncated hot set behind.
+            if (!tmpFile.renameTo(hotSetFile))
+                tmpFile.delete();
+        } catch (IOException e) {
+            Log.e(TAG, "Error in saveHotSet: " + e.getMessage());
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the saved hot set from disk into the memory cache on a worker thread. The most recent
+     * keys are decoded first, until half of the memory cache or the time budget is used, then
+     * inserted oldest first so the recency order of the memory cache matches the saved one.
+     */
+    private void restoreHotSet() {
+        if (memoryCache == null || diskLruCache == null || !hotSetFile.exists())
+            return;
+        AppExecutor.submitTask(new Runnable() {
+            @Override
+            public void run() {
+                long deadline = SystemClock.elapsedRealtime() + RESTORE_TIME_BUDGET_MS;
+                long byteBudget = memoryCache.maxSizeInBytes() / 2;
+                long restoredBytes = 0;
+                List<String> keys = new ArrayList<>();
+                List<Bitmap> bitmaps = new ArrayList<>();
+                for (String key : readHotSet()) {
+                    if (SystemClock.elapsedRealtime() >= deadline)
+                        break;
+                    // Entries loaded by visible requests meanwhile are fresher, leave them be.
+                    if (memoryCache.get(key) != null)
+                        continue;
+                    Bitmap bitmap = diskLruCache.get(key);
+                    if (bitmap == null)
+                        continue;
+                    restoredBytes += bitmap.getByteCount();
+                    if (restoredBytes > byteBudget)
+                        break;
+                    keys.add(key);
+                    bitmaps.add(bitmap);
+                }
+                for (int i = keys.size() - 1; i >= 0; i--) {
+                    if (memoryCache.get(keys.get(i)) == null)
+                        memoryCache.put(keys.get(i), bitmaps.get(i));
+                }
+            }
+        });
+    }
+
+    private List<String> readHotSet() {
+        List<String> keys = new ArrayList<>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(hotSetFile));
+            String line;
+            while ((line = reader.readLine()) != null && keys.size() < MAX_HOT_SET_KEYS) {
+                if (!line.isEmpty())
+                    keys.add(line);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error in readHotSet: " + e.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Saves the hot set before trimming, so it reflects what was in memory. Only the first trim
+     * after the last load saves it.
+     */
     @Override
     public void trimMemory(int level) {
+        saveHotSet();
         memoryCache.trimMemory(level);
     }
 }
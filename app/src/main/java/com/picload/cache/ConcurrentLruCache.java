@@ -0,0 +1,288 @@
+package com.picload.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Weight bounded LRU cache for concurrent access, replacing the single monitor of LruCache.
+ * <p>
+ * Entries live in a ConcurrentHashMap, so reads never lock and writes only contend on the
+ * segment of their key. The recency order is kept in a linked list guarded by an eviction lock:
+ * reads are recorded in per thread striped buffers and writes queue their list update, both are
+ * replayed in batches by whichever thread gets the lock. Reads and writes only try the lock, a
+ * writer blocks on it only when the cache is over capacity, so memory stays bounded. Every lock
+ * holder checks the write buffer again after releasing the lock, a write queued while the lock
+ * was held is replayed and evicted by the holder rather than left behind. When a read
+ * buffer is full further reads are not recorded until it is drained, trading some recency
+ * precision under heavy contention for never blocking a reader.
+ */
+public class ConcurrentLruCache<K, V> {
+
+    /**
+     * Computes the weight of a value, the cache keeps the sum of the weights under its capacity.
+     */
+    public interface Weigher<V> {
+        int weightOf(V value);
+    }
+
+    private static final int READ_BUFFER_COUNT = ceilingPowerOfTwo(Runtime.getRuntime().availableProcessors());
+    private static final int READ_BUFFER_MASK = READ_BUFFER_COUNT - 1;
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+    private static final int READ_BUFFER_MAX_SIZE = 4 * READ_BUFFER_DRAIN_THRESHOLD;
+
+    private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+    private final Weigher<? super V> weigher;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final List<Queue<Node<K, V>>> readBuffers = new ArrayList<>(READ_BUFFER_COUNT);
+    private final AtomicIntegerArray readBufferSizes = new AtomicIntegerArray(READ_BUFFER_COUNT);
+    private final Queue<Runnable> writeBuffer = new ConcurrentLinkedQueue<>();
+
+    // Recency list, eldest first, guarded by evictionLock.
+    private final Node<K, V> head = new Node<>(null, null, 0);
+    private volatile long weightedSize;
+    // Weight of the entries in data, ahead of weightedSize until the write buffer is drained.
+    private final AtomicLong pendingWeightedSize = new AtomicLong();
+    private final long capacity;
+
+    public ConcurrentLruCache(long capacity, Weigher<? super V> weigher) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
+        this.capacity = capacity;
+        this.weigher = weigher;
+        head.prev = head;
+        head.next = head;
+        for (int i = 0; i < READ_BUFFER_COUNT; i++) {
+            readBuffers.add(new ConcurrentLinkedQueue<Node<K, V>>());
+        }
+    }
+
+    public V get(K key) {
+        Node<K, V> node = data.get(key);
+        if (node == null)
+            return null;
+        recordRead(node);
+        return node.value;
+    }
+
+    /**
+     * Caches the value, replacing the previous value of the key.
+     *
+     * @return the previous value, null if there was none
+     */
+    public V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        final Node<K, V> node = new Node<>(key, value, weigher.weightOf(value));
+        final Node<K, V> prior = data.put(key, node);
+        pendingWeightedSize.addAndGet(prior != null ? node.weight - prior.weight : node.weight);
+        writeBuffer.add(new Runnable() {
+            @Override
+            public void run() {
+                if (prior != null)
+                    unlink(prior);
+                // A concurrent put may have replaced the node before this task ran.
+                if (data.get(node.key) == node)
+                    linkLast(node);
+            }
+        });
+        drainAfterWrite();
+        return prior != null ? prior.value : null;
+    }
+
+    public V remove(K key) {
+        final Node<K, V> node = data.remove(key);
+        if (node == null)
+            return null;
+        pendingWeightedSize.addAndGet(-node.weight);
+        writeBuffer.add(new Runnable() {
+            @Override
+            public void run() {
+                unlink(node);
+            }
+        });
+        drainAfterWrite();
+        return node.value;
+    }
+
+    /**
+     * Sum of the weights of the entries.
+     */
+    public long size() {
+        return weightedSize;
+    }
+
+    public long maxSize() {
+        return capacity;
+    }
+
+    /**
+     * Evicts the least recently used entries until the weighted size is at most the given size.
+     */
+    public void trimToSize(long maxSize) {
+        evictionLock.lock();
+        try {
+            drainBuffers();
+            evict(maxSize);
+        } finally {
+            unlockEviction();
+        }
+    }
+
+    public void evictAll() {
+        trimToSize(-1);
+    }
+
+    /**
+     * Keys of the entries, the most recently used first.
+     */
+    public List<K> keysByRecency() {
+        evictionLock.lock();
+        try {
+            drainBuffers();
+            List<K> keys = new ArrayList<>(data.size());
+            for (Node<K, V> node = head.prev; node != head; node = node.prev) {
+                keys.add(node.key);
+            }
+            return keys;
+        } finally {
+            unlockEviction();
+        }
+    }
+
+    private void recordRead(Node<K, V> node) {
+        int index = (int) Thread.currentThread().getId() & READ_BUFFER_MASK;
+        int size = readBufferSizes.get(index);
+        if (size < READ_BUFFER_MAX_SIZE) {
+            readBuffers.get(index).add(node);
+            size = readBufferSizes.incrementAndGet(index);
+        }
+        if (size >= READ_BUFFER_DRAIN_THRESHOLD && evictionLock.tryLock()) {
+            try {
+                drainBuffers();
+                evict(capacity);
+            } finally {
+                unlockEviction();
+            }
+        }
+    }
+
+    /**
+     * Replays the queued writes if the lock is free, otherwise leaves them to the thread holding
+     * it. Only waits for the lock when the entries are over capacity and must be evicted now.
+     */
+    private void drainAfterWrite() {
+        if (pendingWeightedSize.get() > capacity) {
+            evictionLock.lock();
+        } else if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            drainBuffers();
+            evict(capacity);
+        } finally {
+            unlockEviction();
+        }
+    }
+
+    /**
+     * Releases the lock, then replays the writes queued by the threads which failed to take it
+     * meanwhile. Their writers returned counting on the holder, the lock is taken again as long
+     * as writes are queued and nobody else holds it.
+     */
+    private void unlockEviction() {
+        evictionLock.unlock();
+        while (!writeBuffer.isEmpty() && evictionLock.tryLock()) {
+            try {
+                drainBuffers();
+                evict(capacity);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Replays the recorded reads and writes on the recency list, caller must hold the lock.
+     */
+    private void drainBuffers() {
+        for (int i = 0; i < READ_BUFFER_COUNT; i++) {
+            Node<K, V> node;
+            while ((node = readBuffers.get(i).poll()) != null) {
+                readBufferSizes.decrementAndGet(i);
+                if (node.isLinked())
+                    moveToLast(node);
+            }
+        }
+        Runnable task;
+        while ((task = writeBuffer.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void evict(long maxSize) {
+        while (weightedSize > maxSize && head.next != head) {
+            Node<K, V> eldest = head.next;
+            // Not in data anymore if removed or replaced meanwhile, its writer did the accounting.
+            if (data.remove(eldest.key, eldest))
+                pendingWeightedSize.addAndGet(-eldest.weight);
+            unlink(eldest);
+        }
+    }
+
+    private void linkLast(Node<K, V> node) {
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+        weightedSize += node.weight;
+    }
+
+    private void unlink(Node<K, V> node) {
+        if (!node.isLinked())
+            return;
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        weightedSize -= node.weight;
+    }
+
+    private void moveToLast(Node<K, V> node) {
+        unlink(node);
+        linkLast(node);
+    }
+
+    private static int ceilingPowerOfTwo(int value) {
+        int power = 1;
+        while (power < value) {
+            power <<= 1;
+        }
+        return power;
+    }
+
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final int weight;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+
+        boolean isLinked() {
+            return prev != null;
+        }
+    }
+}
@@ -4,37 +4,109 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.util.Log;
 
+import com.picload.models.EntryMetadata;
+
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class DiskLruCache {
 
     private static final String TAG = "DiskLruCache";
 
     private static final String CACHE_FILENAME_PREFIX = "cache_";
+    private static final String METADATA_SUFFIX = ".meta";
+    private static final String PARTIAL_SUFFIX = ".partial";
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final String DOWNLOAD_LOCK_PREFIX = "download_";
+    private static final int DOWNLOAD_LOCK_STRIPES = 64;
+    private static final String JOURNAL_FILENAME = "journal";
+    private static final String JOURNAL_LOCK_FILENAME = "journal.lock";
+    private static final String JOURNAL_MAGIC = "picload.journal";
+    private static final String JOURNAL_CHARSET = "US-ASCII";
+    private static final String JOURNAL_PUT = "PUT";
+    private static final String JOURNAL_DELETE = "DEL";
+    private static final String JOURNAL_METADATA = "META";
+    private static final int JOURNAL_COMPACT_THRESHOLD = 2000;
+    private static final int JOURNAL_HEADER_MAX_LENGTH = 128;
+    private static final int FILE_LOCK_ATTEMPTS = 10;
+    private static final long FILE_LOCK_RETRY_DELAY_MS = 5;
+
+    /**
+     * Lock state of the shared cache directories, one per directory for the whole process. File
+     * locks are held by the process, two threads taking the same one throw
+     * OverlappingFileLockException, so every instance opened on a directory goes through the
+     * same in process locks before taking the file lock.
+     */
+    private static final Map<String, SharedDirectory> sharedDirectories = new HashMap<>();
     private static final int BUFFER_SIZE = 8 * 1024;
     private static final int MAX_REMOVALS = 4;
+    private static final long PARTIAL_MAX_AGE_MS = 24 * 60 * 60 * 1000L;
+    private static final long PARTIAL_ACTIVE_MS = 60 * 1000L;
     private final int maxCacheItemSize = 64; // 64 item default
     private final File mCacheDir;
     private int cacheSize;
-    private int cacheByteSize = 0;
+    private long cacheByteSize = 0;
     private long maxCacheSizeInBytes = 5 * 1024 * 1025; // 5MB default value
     private Bitmap.CompressFormat mCompressFormat = Bitmap.CompressFormat.JPEG;
     private int mCompressQuality = 90;
 
+    /**
+     * Shared caches coordinate with the other processes using the same directory: every change of
+     * the index is appended to a journal under an exclusive lock of the journal lock file, and
+     * every access first replays the records appended by the others under a shared lock. The
+     * fields below are guarded by the map lock.
+     */
+    private final boolean shared;
+    private final File journalFile;
+    private final SharedDirectory sharedDirectory;
+    private String journalGeneration;
+    private long journalOffset;
+    private int journalRecords;
 
     private final Map<String, String> map =
             new LinkedHashMap<>(16, 0.75f, true);
 
+    /**
+     * Freshness information of the entries, guarded by the map lock and persisted next to each
+     * cache file so it survives process restarts.
+     */
+    private final Map<String, EntryMetadata> metadataMap = new HashMap<>();
+
+    /**
+     * Size of the file of each entry when it was indexed, guarded by the map lock. Removals
+     * subtract the recorded size: the file may already be deleted or replaced by another process.
+     */
+    private final Map<String, Long> entrySizes = new HashMap<>();
+
     /**
      * A filename filter to use to identify the cache filenames which have CACHE_FILENAME_PREFIX
      * prepended.
@@ -46,16 +118,30 @@ public class DiskLruCache {
         }
     };
 
+    /**
+     * A filename filter to identify the bodies of unfinished downloads.
+     */
+    private static final FilenameFilter partialFileFilter = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String filename) {
+            return filename.startsWith(CACHE_FILENAME_PREFIX) && filename.endsWith(PARTIAL_SUFFIX);
+        }
+    };
+
     /**
      * Using private constructor to runs some extra checks before
      * creating a DiskLruCache instance.
      *
      * @param cacheDirectory Directory to store and access cache data.
      * @param maxSize        max size of the cache.
+     * @param shared         whether other processes use the same directory.
      */
-    private DiskLruCache(File cacheDirectory, long maxSize) {
+    private DiskLruCache(File cacheDirectory, long maxSize, boolean shared) {
         this.mCacheDir = cacheDirectory;
         this.maxCacheSizeInBytes = maxSize;
+        this.shared = shared;
+        this.journalFile = new File(cacheDirectory, JOURNAL_FILENAME);
+        this.sharedDirectory = shared ? SharedDirectory.of(cacheDirectory) : null;
     }
 
     /**
@@ -74,7 +160,43 @@ public class DiskLruCache {
         }
 
         if (cacheDir.isDirectory() && cacheDir.canWrite()) {
-            return new DiskLruCache(cacheDir, maxSize);
+            final DiskLruCache cache = new DiskLruCache(cacheDir, maxSize, false);
+            cache.trimPartialFiles(null);
+            return cache;
+        }
+        return null;
+    }
+
+    /**
+     * Used to fetch an instance of DiskLruCache sharing its directory with other processes, such
+     * as a widget or a sync service. Each process sees the entries written and evicted by the
+     * others and waits for a download already in progress in another process.
+     *
+     * @param cacheDir Directory to store and access cache data, the same for every process.
+     * @param maxSize  max size of the cache.
+     */
+    public static DiskLruCache openSharedCache(File cacheDir, long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        if (!cacheDir.exists()) {
+            cacheDir.mkdir();
+        }
+
+        if (cacheDir.isDirectory() && cacheDir.canWrite()) {
+            final DiskLruCache cache = new DiskLruCache(cacheDir, maxSize, true);
+            synchronized (cache.map) {
+                final FileLock lock = cache.lockIndex(true);
+                try {
+                    if (cache.isLocked(lock) && !cache.journalFile.exists())
+                        cache.rewriteJournal();
+                } finally {
+                    cache.unlockIndex(lock);
+                }
+            }
+            cache.trimPartialFiles(null);
+            return cache;
         }
         return null;
     }
@@ -90,20 +212,281 @@ public class DiskLruCache {
             throw new NullPointerException("key == null || bitmap == null");
         }
         synchronized (map) {
-            if (map.get(key) == null) {
-                try {
-                    final String file = createFilePath(mCacheDir, key);
-                    if (writeBitmapToFile(bitmap, file)) {
-                        put(key, file);
-                        flushCache();
+            final FileLock lock = lockIndex(true);
+            try {
+                if (!isLocked(lock))
+                    return;
+                putLocked(key, bitmap);
+            } finally {
+                unlockIndex(lock);
+            }
+        }
+    }
+
+    /**
+     * Add a bitmap to the disk cache along with its freshness information, replacing the
+     * existing entry for the key if there is one.
+     *
+     * @param key      A unique identifier for the bitmap.
+     * @param bitmap   The bitmap to store.
+     * @param metadata Expiry and validators of the bitmap, may be null.
+     */
+    public void put(String key, Bitmap bitmap, EntryMetadata metadata) {
+        if (key == null || bitmap == null) {
+            throw new NullPointerException("key == null || bitmap == null");
+        }
+        synchronized (map) {
+            final FileLock lock = lockIndex(true);
+            try {
+                if (!isLocked(lock))
+                    return;
+                removeFromIndex(key);
+                putLocked(key, bitmap);
+                if (metadata != null && map.containsKey(key)) {
+                    writeMetadata(key, metadata);
+                }
+            } finally {
+                unlockIndex(lock);
+            }
+        }
+    }
+
+    /**
+     * Returns the freshness information of an entry, null if the entry has none.
+     */
+    public EntryMetadata getMetadata(String key) {
+        synchronized (map) {
+            final FileLock lock = lockIndex(false);
+            try {
+                if (!isLocked(lock))
+                    return null;
+                return metadataMap.get(key);
+            } finally {
+                unlockIndex(lock);
+            }
+        }
+    }
+
+    /**
+     * Replaces the freshness information of an existing entry, used when a revalidation
+     * confirms the cached bitmap is still valid.
+     */
+    public void updateMetadata(String key, EntryMetadata metadata) {
+        synchronized (map) {
+            final FileLock lock = lockIndex(true);
+            try {
+                if (!isLocked(lock))
+                    return;
+                if (map.containsKey(key)) {
+                    writeMetadata(key, metadata);
+                    appendJournal(JOURNAL_METADATA, key);
+                }
+            } finally {
+                unlockIndex(lock);
+            }
+        }
+    }
+
+    /**
+     * File receiving the body of an image being downloaded, kept across attempts so an
+     * interrupted download can be resumed. Not an entry of the cache until committed.
+     */
+    public File getPartialFile(String key) {
+        return new File(createFilePath(mCacheDir, key) + PARTIAL_SUFFIX);
+    }
+
+    /**
+     * Validators of the partial download, the resumed request is only valid for the same version
+     * of the image. Null when the partial file cannot be resumed.
+     */
+    public EntryMetadata getPartialMetadata(String key) {
+        return readMetadata(getPartialFile(key).getPath() + METADATA_SUFFIX);
+    }
+
+    /**
+     * Saves the validators of a download about to be received, a new partial download is also
+     * the time to drop abandoned ones.
+     */
+    public void savePartialMetadata(String key, EntryMetadata metadata) {
+        final File partialFile = getPartialFile(key);
+        writeMetadataFile(partialFile.getPath() + METADATA_SUFFIX, metadata);
+        trimPartialFiles(partialFile);
+    }
+
+    /**
+     * Deletes the partial downloads abandoned for a day, then the least recently written ones
+     * while they take more than a quarter of the cache size. Partial files are not entries of the
+     * index, this keeps them from growing outside of the disk budget. Downloads written in the
+     * last minute are in progress and left alone, as is the given one.
+     */
+    private void trimPartialFiles(File keep) {
+        final File[] files = mCacheDir.listFiles(partialFileFilter);
+        if (files == null || files.length == 0) return;
+        final Map<File, Long> modified = new HashMap<>(files.length);
+        long totalSize = 0;
+        for (File f : files) {
+            final File metadataFile = new File(f.getPath() + METADATA_SUFFIX);
+            modified.put(f, Math.max(f.lastModified(), metadataFile.lastModified()));
+            totalSize += f.length();
+        }
+        final List<File> sorted = new ArrayList<>(modified.keySet());
+        Collections.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long m1 = modified.get(f1);
+                long m2 = modified.get(f2);
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+        final long now = System.currentTimeMillis();
+        for (File f : sorted) {
+            final long age = now - modified.get(f);
+            if (f.equals(keep) || age < PARTIAL_ACTIVE_MS)
+                continue;
+            if (age > PARTIAL_MAX_AGE_MS || totalSize > maxCacheSizeInBytes / 4) {
+                totalSize -= f.length();
+                f.delete();
+                new File(f.getPath() + METADATA_SUFFIX).delete();
+                Log.d(TAG, "trimPartialFiles - Removed partial file, " + f);
+            }
+        }
+    }
+
+    /**
+     * Blocks until no other process downloads the image, so each image is downloaded once per
+     * device. The caller checks the cache again once the lock is held and must close the returned
+     * lock, from the same thread, when its download is committed or abandoned.
+     * <p>
+     * Images are striped over a fixed set of lock files which are never deleted, deleting a file
+     * another process holds locked would let a third one lock a new file and download again.
+     *
+     * @return the held lock, null when the cache is not shared or the lock could not be taken.
+     */
+    public Closeable lockDownload(String key) {
+        if (!shared) return null;
+        final int stripe = (key.hashCode() & 0x7fffffff) % DOWNLOAD_LOCK_STRIPES;
+        final ReentrantLock threadLock = sharedDirectory.downloadLocks[stripe];
+        threadLock.lock();
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(new File(mCacheDir, DOWNLOAD_LOCK_PREFIX + stripe + LOCK_SUFFIX), "rw");
+            final RandomAccessFile lockFile = file;
+            final FileLock lock = lockFile(lockFile.getChannel(), false);
+            return new Closeable() {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        lock.release();
+                        lockFile.close();
+                    } finally {
+                        threadLock.unlock();
                     }
-                } catch (FileNotFoundException e) {
-                    Log.e(TAG, "Error in put: " + e.getMessage());
-                    System.out.println(e.getMessage() + " error while adding " + key);
-                } catch (IOException e) {
-                    Log.e(TAG, "Error in put: " + e.getMessage());
-                    System.out.println(e.getMessage() + " error while adding " + key);
                 }
+            };
+        } catch (IOException | OverlappingFileLockException e) {
+            Log.e(TAG, "Error in lockDownload: " + e.getMessage());
+            closeQuietly(file);
+            threadLock.unlock();
+            return null;
+        }
+    }
+
+    /**
+     * Promotes a complete download to a cache entry by renaming it over the entry file, so other
+     * readers see either the previous file or the complete new one, never a partial body.
+     *
+     * @return the entry file, null if the download could not be committed.
+     */
+    public File commitDownload(String key, File partialFile, EntryMetadata metadata) {
+        synchronized (map) {
+            final FileLock lock = lockIndex(true);
+            try {
+                if (!isLocked(lock))
+                    return null;
+                final String file = createFilePath(mCacheDir, key);
+                removeFromIndex(key);
+                new File(partialFile.getPath() + METADATA_SUFFIX).delete();
+                if (!partialFile.renameTo(new File(file))) {
+                    Log.e(TAG, "commitDownload - rename failed for " + key);
+                    partialFile.delete();
+                    return null;
+                }
+                put(key, file);
+                if (metadata != null)
+                    writeMetadata(key, metadata);
+                appendJournal(JOURNAL_PUT, key);
+                flushCache();
+                return new File(file);
+            } finally {
+                unlockIndex(lock);
+            }
+        }
+    }
+
+    /**
+     * Removes an entry and its files from the disk cache.
+     *
+     * @param key The unique key for the bitmap
+     */
+    public void remove(String key) {
+        synchronized (map) {
+            final FileLock lock = lockIndex(true);
+            try {
+                if (!isLocked(lock))
+                    return;
+                removeFromIndex(key);
+                final String file = createFilePath(mCacheDir, key);
+                new File(file).delete();
+                new File(file + METADATA_SUFFIX).delete();
+                appendJournal(JOURNAL_DELETE, key);
+            } finally {
+                unlockIndex(lock);
+            }
+        }
+    }
+
+    /**
+     * Add all the bitmaps to the disk cache while holding the index lock once.
+     *
+     * @param bitmaps bitmaps to store mapped by their unique identifier.
+     */
+    public void putAll(Map<String, Bitmap> bitmaps) {
+        synchronized (map) {
+            final FileLock lock = lockIndex(true);
+            try {
+                if (!isLocked(lock))
+                    return;
+                for (Map.Entry<String, Bitmap> entry : bitmaps.entrySet()) {
+                    if (entry.getKey() == null || entry.getValue() == null) {
+                        throw new NullPointerException("key == null || bitmap == null");
+                    }
+                    putLocked(entry.getKey(), entry.getValue());
+                }
+            } finally {
+                unlockIndex(lock);
+            }
+        }
+    }
+
+    /**
+     * Writes the bitmap if the key is not already cached, caller must hold the index lock and, for
+     * a shared cache, the exclusive journal lock.
+     */
+    private void putLocked(String key, Bitmap bitmap) {
+        if (map.get(key) == null) {
+            try {
+                final String file = createFilePath(mCacheDir, key);
+                if (writeBitmapToFile(bitmap, file)) {
+                    put(key, file);
+                    appendJournal(JOURNAL_PUT, key);
+                    flushCache();
+                }
+            } catch (FileNotFoundException e) {
+                Log.e(TAG, "Error in put: " + e.getMessage());
+                System.out.println(e.getMessage() + " error while adding " + key);
+            } catch (IOException e) {
+                Log.e(TAG, "Error in put: " + e.getMessage());
+                System.out.println(e.getMessage() + " error while adding " + key);
             }
         }
     }
@@ -114,7 +497,29 @@ public class DiskLruCache {
     private void put(String key, String fileName) {
         map.put(key, fileName);
         cacheSize = map.size();
-        cacheByteSize += new File(fileName).length();
+        final long size = new File(fileName).length();
+        final Long previousSize = entrySizes.put(key, size);
+        cacheByteSize += previousSize != null ? size - previousSize : size;
+    }
+
+    /**
+     * Removes a key from the index without touching its files, caller must hold the index lock.
+     */
+    private void removeFromIndex(String key) {
+        if (map.remove(key) != null)
+            cacheSize = map.size();
+        final Long size = entrySizes.remove(key);
+        if (size != null)
+            cacheByteSize -= size;
+        metadataMap.remove(key);
+    }
+
+    private void resetIndex() {
+        map.clear();
+        metadataMap.clear();
+        entrySizes.clear();
+        cacheSize = 0;
+        cacheByteSize = 0;
     }
 
     /**
@@ -125,13 +530,19 @@ public class DiskLruCache {
         File eldestFile;
         long eldestFileSize;
         int count = 0;
-        while (count < MAX_REMOVALS &&
+        while (count < MAX_REMOVALS && !map.isEmpty() &&
                 (cacheSize > maxCacheItemSize || cacheByteSize > maxCacheSizeInBytes)) {
             eldestEntry = map.entrySet().iterator().next();
             eldestFile = new File(eldestEntry.getValue());
-            eldestFileSize = eldestFile.length();
+            final Long size = entrySizes.remove(eldestEntry.getKey());
+            eldestFileSize = size != null ? size : 0;
             map.remove(eldestEntry.getKey());
             eldestFile.delete();
+            if (metadataMap.remove(eldestEntry.getKey()) != null) {
+                new File(eldestEntry.getValue() + METADATA_SUFFIX).delete();
+            }
+            if (shared)
+                appendJournal(JOURNAL_DELETE, eldestEntry.getKey());
             cacheSize = map.size();
             cacheByteSize -= eldestFileSize;
             count++;
@@ -147,31 +558,151 @@ public class DiskLruCache {
      */
     public Bitmap get(String key) {
         synchronized (map) {
-            final String file = map.get(key);
-            if (file != null) {
-                Log.d(TAG, "Disk cache hit");
-                return BitmapFactory.decodeFile(file);
-            } else {
-                final String existingFile = createFilePath(mCacheDir, key);
-                if (existingFile == null) return null;
-                if (new File(existingFile).exists()) {
-                    put(key, existingFile);
-                    Log.d(TAG, "Disk cache hit (existing file)");
-                    return BitmapFactory.decodeFile(existingFile);
+            final FileLock lock = lockIndex(false);
+            try {
+                if (!isLocked(lock))
+                    return null;
+                final String file = resolveFile(key);
+                if (file != null) {
+                    return BitmapFactory.decodeFile(file);
                 }
+                return null;
+            } finally {
+                unlockIndex(lock);
+            }
+        }
+    }
+
+    /**
+     * Get the file of an image in the disk cache without decoding it. The file may be evicted
+     * once returned, readers must cope with it going away.
+     *
+     * @param key The unique key for the bitmap
+     */
+    public File getFile(String key) {
+        synchronized (map) {
+            final FileLock lock = lockIndex(false);
+            try {
+                if (!isLocked(lock))
+                    return null;
+                final String file = resolveFile(key);
+                return file != null ? new File(file) : null;
+            } finally {
+                unlockIndex(lock);
             }
-            return null;
         }
     }
 
+    /**
+     * Get all the images available in the disk cache for the given keys. The keys are resolved
+     * under one index lock, then the files are decoded outside of it in the order they were
+     * written, which is the closest approximation of their on-disk layout we have.
+     *
+     * @param keys The unique keys for the bitmaps
+     * @return bitmaps found in the cache mapped by key, missing keys are left out.
+     */
+    public Map<String, Bitmap> getAll(Collection<String> keys) {
+        final List<File> files = new ArrayList<>(keys.size());
+        final Map<File, String> fileKeys = new HashMap<>(keys.size());
+        synchronized (map) {
+            final FileLock lock = lockIndex(false);
+            try {
+                if (!isLocked(lock))
+                    return new HashMap<>();
+                for (String key : keys) {
+                    final String file = resolveFile(key);
+                    if (file != null) {
+                        File f = new File(file);
+                        files.add(f);
+                        fileKeys.put(f, key);
+                    }
+                }
+            } finally {
+                unlockIndex(lock);
+            }
+        }
+        final Map<File, Long> modified = new HashMap<>(files.size());
+        for (File f : files) {
+            modified.put(f, f.lastModified());
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long m1 = modified.get(f1);
+                long m2 = modified.get(f2);
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+        final Map<String, Bitmap> result = new HashMap<>(files.size());
+        for (File f : files) {
+            // File may have been evicted after the index lock was released.
+            Bitmap bitmap = BitmapFactory.decodeFile(f.getAbsolutePath());
+            if (bitmap != null)
+                result.put(fileKeys.get(f), bitmap);
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether all the keys are in the disk cache without decoding any of them.
+     */
+    public boolean containsAll(Collection<String> keys) {
+        synchronized (map) {
+            final FileLock lock = lockIndex(false);
+            try {
+                if (!isLocked(lock))
+                    return false;
+                for (String key : keys) {
+                    if (resolveFile(key) == null)
+                        return false;
+                }
+                return true;
+            } finally {
+                unlockIndex(lock);
+            }
+        }
+    }
+
+    /**
+     * Finds the cache file for a key, registering files left by a previous session in the index.
+     * Caller must hold the index lock.
+     */
+    private String resolveFile(String key) {
+        final String file = map.get(key);
+        if (file != null) {
+            Log.d(TAG, "Disk cache hit");
+            return file;
+        }
+        final String existingFile = createFilePath(mCacheDir, key);
+        if (existingFile == null) return null;
+        if (new File(existingFile).exists()) {
+            put(key, existingFile);
+            final EntryMetadata metadata = readMetadata(existingFile + METADATA_SUFFIX);
+            if (metadata != null)
+                metadataMap.put(key, metadata);
+            Log.d(TAG, "Disk cache hit (existing file)");
+            return existingFile;
+        }
+        return null;
+    }
+
     /**
      * Removes all disk cache entries from this instance cache dir.
      */
     public synchronized void clearCache() {
-        DiskLruCache.clearCache(mCacheDir);
-        map.clear();
-        cacheSize = 0;
-        cacheByteSize = 0;
+        synchronized (map) {
+            final FileLock lock = lockIndex(true);
+            try {
+                if (!isLocked(lock))
+                    return;
+                DiskLruCache.clearCache(mCacheDir);
+                resetIndex();
+                if (shared)
+                    rewriteJournal();
+            } finally {
+                unlockIndex(lock);
+            }
+        }
     }
 
     private static void clearCache(File cacheDir) {
@@ -181,6 +712,266 @@ public class DiskLruCache {
         }
     }
 
+    /**
+     * Takes the journal lock of a shared cache and replays the records the other processes
+     * appended since the last access. Caller must hold the index lock, must leave the index alone
+     * unless {@link #isLocked} and must call unlockIndex once done, whatever this returns.
+     *
+     * @param exclusive true to change the index, false to only read it.
+     * @return the held lock, null for a cache owned by a single process or on failure.
+     */
+    private FileLock lockIndex(boolean exclusive) {
+        if (!shared) return null;
+        // Instances sharing the directory in this process take turns on the file lock.
+        sharedDirectory.indexLock.lock();
+        FileLock lock = null;
+        try {
+            lock = lockFile(sharedDirectory.journalLockChannel(), !exclusive);
+            readJournal();
+            return lock;
+        } catch (IOException | OverlappingFileLockException e) {
+            Log.e(TAG, "Error in lockIndex: " + e.getMessage());
+            if (lock != null) {
+                try {
+                    lock.release();
+                } catch (IOException ignored) {
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Whether lockIndex succeeded. Without the journal lock a shared index misses the changes of
+     * the other processes and a change would be journaled unlocked, corrupting it for all of
+     * them, so operations then behave as a miss and write nothing.
+     */
+    private boolean isLocked(FileLock lock) {
+        return !shared || lock != null;
+    }
+
+    /**
+     * Takes a lock of the whole file, retrying when the kernel reports a deadlock. File locks are
+     * held by processes, not threads: a thread waiting on a lock held by another process while
+     * another thread of this process holds a lock that process waits for looks like a deadlock,
+     * though neither thread waits on the other.
+     */
+    private static FileLock lockFile(FileChannel channel, boolean shared) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return channel.lock(0L, Long.MAX_VALUE, shared);
+            } catch (IOException e) {
+                if (!channel.isOpen() || attempt >= FILE_LOCK_ATTEMPTS)
+                    throw e;
+                try {
+                    Thread.sleep(FILE_LOCK_RETRY_DELAY_MS * attempt);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void unlockIndex(FileLock lock) {
+        if (!shared) return;
+        try {
+            if (lock != null)
+                lock.release();
+        } catch (IOException e) {
+            Log.e(TAG, "Error in unlockIndex: " + e.getMessage());
+        } finally {
+            sharedDirectory.indexLock.unlock();
+        }
+    }
+
+    /**
+     * Applies the journal records appended after the last read, reading only the tail of the
+     * journal. When the journal was compacted by another process since, its generation changed
+     * and the index is rebuilt from scratch.
+     */
+    private void readJournal() throws IOException {
+        if (!journalFile.exists()) return;
+        RandomAccessFile journal = null;
+        try {
+            journal = new RandomAccessFile(journalFile, "r");
+            final byte[] header = new byte[JOURNAL_HEADER_MAX_LENGTH];
+            final int headerLength = journal.read(header);
+            int lineEnd = 0;
+            while (lineEnd < headerLength && header[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd >= headerLength) return;
+            final String generation = new String(header, 0, lineEnd, JOURNAL_CHARSET);
+            if (!generation.startsWith(JOURNAL_MAGIC)) return;
+            if (!generation.equals(journalGeneration)) {
+                resetIndex();
+                journalGeneration = generation;
+                journalOffset = lineEnd + 1;
+                journalRecords = 0;
+            }
+            final long length = journal.length();
+            if (length <= journalOffset) return;
+            final byte[] tail = new byte[(int) (length - journalOffset)];
+            journal.seek(journalOffset);
+            journal.readFully(tail);
+            // Only complete records, one ascii line each.
+            int start = 0;
+            for (int i = 0; i < tail.length; i++) {
+                if (tail[i] == '\n') {
+                    applyRecord(new String(tail, start, i - start, JOURNAL_CHARSET));
+                    journalRecords++;
+                    start = i + 1;
+                }
+            }
+            journalOffset += start;
+        } finally {
+            closeQuietly(journal);
+        }
+    }
+
+    private void applyRecord(String record) {
+        final int space = record.indexOf(' ');
+        if (space == -1) return;
+        final String operation = record.substring(0, space);
+        final String key = decodeKey(record.substring(space + 1));
+        if (key == null) return;
+        removeFromIndex(key);
+        if (JOURNAL_DELETE.equals(operation)) return;
+        // Puts and metadata updates both reload the entry as last written by the other process.
+        final String file = createFilePath(mCacheDir, key);
+        if (file != null && new File(file).exists()) {
+            put(key, file);
+            final EntryMetadata metadata = readMetadata(file + METADATA_SUFFIX);
+            if (metadata != null)
+                metadataMap.put(key, metadata);
+        }
+    }
+
+    /**
+     * Appends a record to the journal of a shared cache, caller must hold the exclusive journal
+     * lock. Compacts the journal once it is mostly made of outdated records.
+     */
+    private void appendJournal(String operation, String key) {
+        if (!shared) return;
+        if (journalGeneration == null || !journalFile.exists()) {
+            rewriteJournal();
+            return;
+        }
+        final String record = operation + ' ' + encodeKey(key) + '\n';
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(journalFile, true), JOURNAL_CHARSET);
+            writer.write(record);
+        } catch (IOException e) {
+            Log.e(TAG, "Error in appendJournal: " + e.getMessage());
+            return;
+        } finally {
+            closeQuietly(writer);
+        }
+        journalOffset += record.length();
+        journalRecords++;
+        if (journalRecords > JOURNAL_COMPACT_THRESHOLD && journalRecords > 2 * map.size())
+            rewriteJournal();
+    }
+
+    /**
+     * Replaces the journal with one put record per entry, eldest first, under a new generation.
+     * Caller must hold the exclusive journal lock.
+     */
+    private void rewriteJournal() {
+        final File tmpFile = new File(mCacheDir, JOURNAL_FILENAME + ".tmp");
+        final String generation = JOURNAL_MAGIC + ' ' + UUID.randomUUID();
+        long offset = generation.length() + 1;
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile),
+                    JOURNAL_CHARSET));
+            writer.write(generation + '\n');
+            for (String key : map.keySet()) {
+                final String record = JOURNAL_PUT + ' ' + encodeKey(key) + '\n';
+                writer.write(record);
+                offset += record.length();
+            }
+            writer.close();
+            writer = null;
+            if (!tmpFile.renameTo(journalFile)) {
+                Log.e(TAG, "rewriteJournal - rename failed");
+                tmpFile.delete();
+                return;
+            }
+            journalGeneration = generation;
+            journalOffset = offset;
+            journalRecords = map.size();
+        } catch (IOException e) {
+            Log.e(TAG, "Error in rewriteJournal: " + e.getMessage());
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    /**
+     * In process locks of a shared cache directory and the channel of its journal lock file.
+     */
+    private static final class SharedDirectory {
+        final File journalLockFile;
+        final ReentrantLock indexLock = new ReentrantLock();
+        final ReentrantLock[] downloadLocks = new ReentrantLock[DOWNLOAD_LOCK_STRIPES];
+        private FileChannel journalLockChannel;
+
+        private SharedDirectory(File cacheDir) {
+            journalLockFile = new File(cacheDir, JOURNAL_LOCK_FILENAME);
+            for (int i = 0; i < downloadLocks.length; i++) {
+                downloadLocks[i] = new ReentrantLock();
+            }
+        }
+
+        static SharedDirectory of(File cacheDir) {
+            String path;
+            try {
+                path = cacheDir.getCanonicalPath();
+            } catch (IOException e) {
+                path = cacheDir.getAbsolutePath();
+            }
+            synchronized (sharedDirectories) {
+                SharedDirectory directory = sharedDirectories.get(path);
+                if (directory == null) {
+                    directory = new SharedDirectory(cacheDir);
+                    sharedDirectories.put(path, directory);
+                }
+                return directory;
+            }
+        }
+
+        /**
+         * Channel of the journal lock file, caller must hold the index lock.
+         */
+        FileChannel journalLockChannel() throws IOException {
+            if (journalLockChannel == null || !journalLockChannel.isOpen()) {
+                // An interrupt while waiting for the lock closes the channel.
+                journalLockChannel = new RandomAccessFile(journalLockFile, "rw").getChannel();
+            }
+            return journalLockChannel;
+        }
+    }
+
+    private static String encodeKey(String key) {
+        try {
+            return URLEncoder.encode(key, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String decodeKey(String encodedKey) {
+        try {
+            return URLDecoder.decode(encodedKey, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            Log.e(TAG, "Error in decodeKey: " + e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Creates a constant cache file path given a target cache directory and an image key.
      *
@@ -199,23 +990,84 @@ public class DiskLruCache {
     }
 
     /**
-     * Writes a bitmap to a file.
+     * Writes a bitmap to a file. Bitmaps with an alpha channel, such as transformations with
+     * transparent corners, are written as PNG when the format is JPEG, which has no alpha and
+     * would bring them back with black corners.
      *
      * @param bitmap bitmap to cache
      * @param file   file name in which bitmap to be written
      * @return
      */
     private boolean writeBitmapToFile(Bitmap bitmap, String file) throws IOException, FileNotFoundException {
+        final Bitmap.CompressFormat format = bitmap.hasAlpha() && mCompressFormat == Bitmap.CompressFormat.JPEG
+                ? Bitmap.CompressFormat.PNG : mCompressFormat;
         OutputStream outputStream = null;
         try {
             outputStream = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
-            return bitmap.compress(mCompressFormat, mCompressQuality, outputStream);
+            return bitmap.compress(format, mCompressQuality, outputStream);
         } finally {
             if (outputStream != null)
                 outputStream.close();
         }
     }
 
+    /**
+     * Stores the metadata in memory and in the file next to the entry, caller must hold the
+     * index lock.
+     */
+    private void writeMetadata(String key, EntryMetadata metadata) {
+        metadataMap.put(key, metadata);
+        writeMetadataFile(createFilePath(mCacheDir, key) + METADATA_SUFFIX, metadata);
+    }
+
+    private static void writeMetadataFile(String file, EntryMetadata metadata) {
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(file));
+            writer.write(metadata.getExpiresAt() + "\n");
+            writer.write(nullToEmpty(metadata.getEtag()) + "\n");
+            writer.write(nullToEmpty(metadata.getLastModified()) + "\n");
+        } catch (IOException e) {
+            Log.e(TAG, "Error in writeMetadata: " + e.getMessage());
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    private static EntryMetadata readMetadata(String file) {
+        if (!new File(file).exists()) return null;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            long expiresAt = Long.parseLong(reader.readLine());
+            String etag = emptyToNull(reader.readLine());
+            String lastModified = emptyToNull(reader.readLine());
+            return new EntryMetadata(expiresAt, etag, lastModified);
+        } catch (IOException | NumberFormatException e) {
+            Log.e(TAG, "Error in readMetadata: " + e.getMessage());
+            return null;
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
     public void setCompressParams(Bitmap.CompressFormat compressFormat, int quality) {
         mCompressFormat = compressFormat;
         mCompressQuality = quality;
@@ -0,0 +1,122 @@
+package com.picload.cache;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.picload.models.FailureType;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Bounded negative cache of the urls which failed to load. A failed url is not requested again
+ * before its backoff, which grows exponentially with jitter for each consecutive failure of the
+ * same class. Retries are also limited per host, so a host failing for every url does not get
+ * one retry per url.
+ */
+public class FailedUrlCache {
+
+    private static final int MAX_ENTRIES = 256;
+    private static final int HOST_RETRY_BUDGET = 8;
+    private static final long HOST_BUDGET_WINDOW_MS = 60 * 1000;
+
+    private final Random random = new Random();
+    private final Map<String, Failure> failures =
+            new LinkedHashMap<String, Failure>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Failure> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    private final Map<String, HostBudget> hostBudgets = new HashMap<>();
+
+    private long skippedRequests;
+    private long recordedFailures;
+    private long retries;
+
+    /**
+     * Whether a request for the url should be skipped. Returns false for urls which never failed,
+     * and for failed urls whose backoff is over when the host still has retry budget, the retry
+     * then uses one unit of that budget.
+     */
+    public synchronized boolean shouldSkip(String url) {
+        Failure failure = failures.get(url);
+        if (failure == null)
+            return false;
+        long now = SystemClock.elapsedRealtime();
+        if (now < failure.retryAt || !hostBudget(url, now).tryAcquire()) {
+            skippedRequests++;
+            return true;
+        }
+        retries++;
+        return false;
+    }
+
+    public synchronized void recordFailure(String url, FailureType type) {
+        recordedFailures++;
+        Failure failure = failures.get(url);
+        if (failure == null || failure.type != type) {
+            failure = new Failure(type);
+            failures.put(url, failure);
+        }
+        failure.count++;
+        long backoff = type.getBackoff(failure.count);
+        // Equal jitter, keeps at least half of the backoff while spreading the retries.
+        long jitter = (long) (random.nextDouble() * (backoff / 2));
+        failure.retryAt = SystemClock.elapsedRealtime() + backoff / 2 + jitter;
+    }
+
+    public synchronized void recordSuccess(String url) {
+        failures.remove(url);
+    }
+
+    public synchronized void clear() {
+        failures.clear();
+        hostBudgets.clear();
+    }
+
+    private HostBudget hostBudget(String url, long now) {
+        String host = Uri.parse(url).getHost();
+        HostBudget budget = hostBudgets.get(host);
+        if (budget == null) {
+            budget = new HostBudget();
+            hostBudgets.put(host, budget);
+        }
+        if (now - budget.windowStart >= HOST_BUDGET_WINDOW_MS) {
+            budget.windowStart = now;
+            budget.used = 0;
+        }
+        return budget;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "failedUrls=%d failures=%d skipped=%d retries=%d",
+                failures.size(), recordedFailures, skippedRequests, retries);
+    }
+
+    private static class Failure {
+        final FailureType type;
+        int count;
+        long retryAt;
+
+        Failure(FailureType type) {
+            this.type = type;
+        }
+    }
+
+    private static class HostBudget {
+        long windowStart;
+        int used;
+
+        boolean tryAcquire() {
+            if (used >= HOST_RETRY_BUDGET)
+                return false;
+            used++;
+            return true;
+        }
+    }
+}
@@ -2,12 +2,99 @@ package com.picload.cache;
 
 import android.graphics.Bitmap;
 
+import com.picload.models.EntryMetadata;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.Collection;
+import java.util.Map;
+
 public interface ImageCache {
     void put(String url, Bitmap bitmap);
     Bitmap get(String url);
     void clear();
 
+    /**
+     * Stores every bitmap of the given map in one pass.
+     */
+    void putAll(Map<String, Bitmap> bitmaps);
+
+    /**
+     * Looks up every url in one pass. Urls which are not cached are absent from the result.
+     */
+    Map<String, Bitmap> getAll(Collection<String> urls);
+
+    /**
+     * Returns true only when every url is present in the cache.
+     */
+    boolean containsAll(Collection<String> urls);
+
     interface UpdateInMemoryCache {
         void trimMemory(int level);
     }
+
+    /**
+     * Implemented by caches having a memory tier in front of slower tiers, so callers can
+     * serve the bitmaps already in memory before going to disk.
+     */
+    interface Tiered {
+        Bitmap getFromMemory(String url);
+
+        Map<String, Bitmap> getAllFromMemory(Collection<String> urls);
+
+        /**
+         * Stores the bitmap in the memory tier only, for bitmaps cheap to derive again.
+         */
+        void putInMemory(String url, Bitmap bitmap);
+    }
+
+    /**
+     * Implemented by caches which keep an expiry time and validators with each entry, so expired
+     * entries can be served while they are revalidated in the background.
+     */
+    interface Revalidatable {
+        void put(String url, Bitmap bitmap, EntryMetadata metadata);
+
+        EntryMetadata getMetadata(String url);
+
+        void updateMetadata(String url, EntryMetadata metadata);
+    }
+
+    /**
+     * Implemented by caches which can receive a download directly into their directory, keeping
+     * interrupted downloads so they can be resumed with range requests.
+     */
+    interface Resumable {
+        File getPartialFile(String url);
+
+        EntryMetadata getPartialMetadata(String url);
+
+        /**
+         * Entry file of the url, for decoders reading the encoded image directly. Null when
+         * the url is not cached.
+         */
+        File getFile(String url);
+
+        void savePartialMetadata(String url, EntryMetadata metadata);
+
+        /**
+         * Waits for a download of the url in progress in another process sharing the cache.
+         *
+         * @return the lock to close once the download is committed or abandoned, null when
+         * there is nothing to wait for
+         */
+        Closeable lockDownload(String url);
+
+        /**
+         * Atomically turns the complete partial file into the cache entry of the url.
+         *
+         * @return the entry file, null on failure
+         */
+        File commitDownload(String url, File partialFile, EntryMetadata metadata);
+
+        /**
+         * Removes the entry of the url, used when a committed body turns out not to be an image.
+         */
+        void remove(String url);
+    }
 }
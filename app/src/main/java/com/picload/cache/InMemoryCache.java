@@ -2,24 +2,26 @@ package com.picload.cache;
 
 import android.graphics.Bitmap;
 
-import androidx.collection.LruCache;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import static android.content.ComponentCallbacks2.TRIM_MEMORY_BACKGROUND;
 import static android.content.ComponentCallbacks2.TRIM_MEMORY_MODERATE;
 
 public class InMemoryCache implements ImageCache, ImageCache.UpdateInMemoryCache {
 
-    private LruCache<String, Bitmap> cache;
+    private ConcurrentLruCache<String, Bitmap> cache;
 
     public InMemoryCache() {
-        long maxMemory = Runtime.getRuntime().maxMemory() / 1024;
-        int cacheSize = (int) (maxMemory / 8);
-        cache = new LruCache<String, Bitmap>(cacheSize) {
+        long cacheSize = Runtime.getRuntime().maxMemory() / 8;
+        cache = new ConcurrentLruCache<>(cacheSize, new ConcurrentLruCache.Weigher<Bitmap>() {
             @Override
-            protected int sizeOf(String key, Bitmap value) {
-                return value.getByteCount() / 1024;
+            public int weightOf(Bitmap value) {
+                return value.getByteCount();
             }
-        };
+        });
     }
 
     @Override
@@ -32,6 +34,50 @@ public class InMemoryCache implements ImageCache, ImageCache.UpdateInMemoryCache
         return cache.get(url);
     }
 
+    /**
+     * Reads do not lock, the batch is resolved without blocking concurrent loads.
+     */
+    @Override
+    public Map<String, Bitmap> getAll(Collection<String> urls) {
+        Map<String, Bitmap> result = new HashMap<>(urls.size());
+        for (String url : urls) {
+            Bitmap bitmap = cache.get(url);
+            if (bitmap != null)
+                result.put(url, bitmap);
+        }
+        return result;
+    }
+
+    @Override
+    public void putAll(Map<String, Bitmap> bitmaps) {
+        for (Map.Entry<String, Bitmap> entry : bitmaps.entrySet()) {
+            cache.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public boolean containsAll(Collection<String> urls) {
+        for (String url : urls) {
+            if (cache.get(url) == null)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Keys currently in the cache, the most recently used first.
+     */
+    public List<String> hotKeys() {
+        return cache.keysByRecency();
+    }
+
+    /**
+     * Max size of the cache in bytes.
+     */
+    public long maxSizeInBytes() {
+        return cache.maxSize();
+    }
+
     @Override
     public void clear() {
         cache.evictAll();
@@ -4,6 +4,9 @@ import android.graphics.Bitmap;
 
 import com.picload.models.CacheParams;
 
+/**
+ * Receives the loaded bitmaps, always called on the main thread.
+ */
 public interface BitmapCallback {
     void getBitmap(Bitmap bitmap, CacheParams cacheParams);
 }
@@ -0,0 +1,10 @@
+package com.picload.interfaces;
+
+import com.picload.models.Tile;
+
+/**
+ * Receives the tiles of the visible region of a large image, always called on the main thread.
+ */
+public interface TileCallback {
+    void onTileLoaded(Tile tile);
+}
@@ -0,0 +1,17 @@
+package com.picload.interfaces;
+
+import android.graphics.Bitmap;
+
+/**
+ * Transforms a loaded bitmap before it is displayed. Transformed bitmaps are cached under the
+ * source key and the keys of the applied transformations.
+ */
+public interface Transformation {
+    Bitmap transform(Bitmap source);
+
+    /**
+     * Stable signature of the transformation and its parameters, two transformations producing
+     * the same output must share it.
+     */
+    String key();
+}
@@ -1,5 +1,10 @@
 package com.picload.models;
 
+import com.picload.interfaces.Transformation;
+
+import java.util.ArrayList;
+import java.util.List;
+
 public class CacheParams {
 
     public String getTag() {
@@ -18,8 +23,84 @@ public class CacheParams {
         this.url = url;
     }
 
+    /**
+     * Time to live in milliseconds set by the caller, overrides the HTTP cache headers when
+     * greater than zero.
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Identifies the view the image is displayed in, when set a result is dropped if the view
+     * has been rebound to another tag before the result reaches the UI.
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    public void setTarget(String target) {
+        this.target = target;
+    }
+
+    /**
+     * Transformations applied in order to the loaded bitmap before it is displayed.
+     */
+    public List<Transformation> getTransformations() {
+        return transformations;
+    }
+
+    public void setTransformations(List<Transformation> transformations) {
+        this.transformations = transformations;
+    }
+
+    public void addTransformation(Transformation transformation) {
+        if (transformations == null)
+            transformations = new ArrayList<>();
+        transformations.add(transformation);
+    }
+
+    public boolean hasTransformations() {
+        return transformations != null && !transformations.isEmpty();
+    }
+
+    /**
+     * Whether the transformed bitmap is also written to the disk cache, by default it is only
+     * kept in memory and transformed again from the cached source after eviction.
+     */
+    public boolean isCacheTransformedOnDisk() {
+        return cacheTransformedOnDisk;
+    }
+
+    public void setCacheTransformedOnDisk(boolean cacheTransformedOnDisk) {
+        this.cacheTransformedOnDisk = cacheTransformedOnDisk;
+    }
+
+    /**
+     * Key of the displayed bitmap, the url followed by the signature of the transformations.
+     */
+    public String getCacheKey() {
+        if (!hasTransformations())
+            return url;
+        StringBuilder key = new StringBuilder(url).append('#');
+        for (int i = 0; i < transformations.size(); i++) {
+            if (i > 0)
+                key.append('|');
+            key.append(transformations.get(i).key());
+        }
+        return key.toString();
+    }
+
     private String tag;
     private String url;
+    private long maxAge;
+    private String target;
+    private List<Transformation> transformations;
+    private boolean cacheTransformedOnDisk;
 
     public CacheParams(String url, String tag) {
         this.url = url;
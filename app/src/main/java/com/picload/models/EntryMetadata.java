@@ -0,0 +1,58 @@
+package com.picload.models;
+
+/**
+ * Freshness information stored next to each disk cache entry. The validators are sent back to
+ * the server when an expired entry is revalidated.
+ */
+public class EntryMetadata {
+
+    /**
+     * Expiry value of entries which never go stale.
+     */
+    public static final long NO_EXPIRY = 0;
+
+    private long expiresAt;
+    private String etag;
+    private String lastModified;
+
+    public EntryMetadata(long expiresAt, String etag, String lastModified) {
+        this.expiresAt = expiresAt;
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    public EntryMetadata() {
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    public boolean isExpired(long now) {
+        return expiresAt != NO_EXPIRY && now >= expiresAt;
+    }
+
+    public boolean hasValidators() {
+        return etag != null || lastModified != null;
+    }
+}
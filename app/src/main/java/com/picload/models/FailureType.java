@@ -0,0 +1,51 @@
+package com.picload.models;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Why an image request failed, each class backs off at its own pace: a missing image will not
+ * come back soon while a timeout is worth retrying shortly.
+ */
+public enum FailureType {
+    NOT_FOUND(10 * 60 * 1000L, 24 * 60 * 60 * 1000L),
+    CLIENT_ERROR(5 * 60 * 1000L, 60 * 60 * 1000L),
+    RATE_LIMITED(30 * 1000L, 10 * 60 * 1000L),
+    SERVER_ERROR(5 * 1000L, 5 * 60 * 1000L),
+    TIMEOUT(2 * 1000L, 2 * 60 * 1000L),
+    NETWORK(1000L, 60 * 1000L),
+    DECODE(60 * 60 * 1000L, 24 * 60 * 60 * 1000L),
+    /**
+     * The body was received but could not be stored, a local error unrelated to the image.
+     */
+    STORAGE(1000L, 60 * 1000L);
+
+    private final long baseBackoff;
+    private final long maxBackoff;
+
+    FailureType(long baseBackoff, long maxBackoff) {
+        this.baseBackoff = baseBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * Backoff in milliseconds after the given number of consecutive failures, doubling from the
+     * base backoff up to the max one.
+     */
+    public long getBackoff(int failures) {
+        int shift = Math.min(Math.max(failures - 1, 0), 30);
+        return Math.min(baseBackoff << shift, maxBackoff);
+    }
+
+    /**
+     * Classifies an unsuccessful HTTP status code.
+     */
+    public static FailureType fromStatusCode(int statusCode) {
+        if (statusCode == HttpURLConnection.HTTP_NOT_FOUND || statusCode == HttpURLConnection.HTTP_GONE)
+            return NOT_FOUND;
+        if (statusCode == 429)
+            return RATE_LIMITED;
+        if (statusCode >= 500)
+            return SERVER_ERROR;
+        return CLIENT_ERROR;
+    }
+}
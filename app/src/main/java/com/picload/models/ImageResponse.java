@@ -0,0 +1,53 @@
+package com.picload.models;
+
+import android.graphics.Bitmap;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Result of an image request, carrying the freshness headers along with the decoded bitmap.
+ */
+public class ImageResponse {
+
+    private Bitmap bitmap;
+    private EntryMetadata metadata;
+    private int statusCode;
+    private FailureType failureType;
+
+    public ImageResponse(Bitmap bitmap, EntryMetadata metadata, int statusCode) {
+        this.bitmap = bitmap;
+        this.metadata = metadata;
+        this.statusCode = statusCode;
+    }
+
+    public ImageResponse(FailureType failureType, EntryMetadata metadata, int statusCode) {
+        this((Bitmap) null, metadata, statusCode);
+        this.failureType = failureType;
+    }
+
+    public Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    public EntryMetadata getMetadata() {
+        return metadata;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Why the request failed, null when it succeeded or was answered with 304.
+     */
+    public FailureType getFailureType() {
+        return failureType;
+    }
+
+    /**
+     * True when a conditional request confirmed the cached copy is still valid.
+     */
+    public boolean isNotModified() {
+        return statusCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+}
@@ -0,0 +1,66 @@
+package com.picload.models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Flickr size suffixes, the same photo is served at every size by changing the suffix of its url.
+ * Declared from the smallest to the largest.
+ */
+public enum SizeVariant {
+    SMALL_SQUARE("s", 75),
+    LARGE_SQUARE("q", 150),
+    SMALL("n", 320),
+    MEDIUM("z", 640),
+    LARGE("b", 1024);
+
+    private final String suffix;
+    private final int longestEdge;
+
+    SizeVariant(String suffix, int longestEdge) {
+        this.suffix = suffix;
+        this.longestEdge = longestEdge;
+    }
+
+    public String getSuffix() {
+        return suffix;
+    }
+
+    public int getLongestEdge() {
+        return longestEdge;
+    }
+
+    /**
+     * Smallest variant covering the given size in pixels, the largest one if none does.
+     */
+    public static SizeVariant forSize(int size) {
+        for (SizeVariant variant : values()) {
+            if (variant.longestEdge >= size)
+                return variant;
+        }
+        return LARGE;
+    }
+
+    /**
+     * The next smaller variant, or this one when already the smallest.
+     */
+    public SizeVariant smaller() {
+        return ordinal() == 0 ? this : values()[ordinal() - 1];
+    }
+
+    /**
+     * Other variants in the order they should be used as a placeholder for this one, larger
+     * variants first as they downscale without loss, then smaller ones from the closest.
+     */
+    public List<SizeVariant> placeholderOrder() {
+        SizeVariant[] variants = values();
+        List<SizeVariant> order = new ArrayList<>(variants.length - 1);
+        for (int i = ordinal() + 1; i < variants.length; i++) {
+            order.add(variants[i]);
+        }
+        for (int i = ordinal() - 1; i >= 0; i--) {
+            order.add(variants[i]);
+        }
+        return order;
+    }
+}
@@ -0,0 +1,81 @@
+package com.picload.models;
+
+import android.graphics.Bitmap;
+
+/**
+ * Square part of a large image decoded on its own. Tiles cover SIZE pixels once sampled, so a
+ * tile decoded with a sample size of 4 spans 4 * SIZE pixels of the image.
+ */
+public class Tile {
+
+    public static final int SIZE = 512;
+
+    private final String url;
+    private final int sampleSize;
+    private final int column;
+    private final int row;
+    private Bitmap bitmap;
+
+    public Tile(String url, int sampleSize, int column, int row) {
+        this.url = url;
+        this.sampleSize = sampleSize;
+        this.column = column;
+        this.row = row;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    public int getRow() {
+        return row;
+    }
+
+    /**
+     * Number of image pixels covered by the side of the tile.
+     */
+    public int getSpan() {
+        return SIZE * sampleSize;
+    }
+
+    /**
+     * Left edge of the tile in image pixels, the bitmap is drawn from there scaled up by the
+     * sample size.
+     */
+    public int getLeft() {
+        return column * getSpan();
+    }
+
+    /**
+     * Top edge of the tile in image pixels.
+     */
+    public int getTop() {
+        return row * getSpan();
+    }
+
+    /**
+     * Decoded tile, smaller than SIZE on the right and bottom edges of the image.
+     */
+    public Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    public void setBitmap(Bitmap bitmap) {
+        this.bitmap = bitmap;
+    }
+
+    /**
+     * Memory cache key of the tile, distinct from the key of the whole image.
+     */
+    public String getKey() {
+        return url + "#tile:" + sampleSize + ":" + column + ":" + row;
+    }
+}
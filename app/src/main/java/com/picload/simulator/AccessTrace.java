@@ -0,0 +1,123 @@
+package com.picload.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * In memory form of a recorded access trace, and the description of its binary format.
+ * <p>
+ * The file starts with {@link #MAGIC} and {@link #VERSION}, followed by one fixed size record per
+ * access: the 64 bit hash of the key, the size of the decoded bitmap in bytes and the tier which
+ * served it. Hashing the keys keeps records small and the trace free of urls.
+ * <p>
+ * A process killed while recording leaves its last record incomplete, readers ignore it and the
+ * recorder truncates it before appending.
+ * <p>
+ * This package only depends on the JDK so traces can be replayed on a desktop JVM, by the
+ * CacheSimulator of the unit test sources.
+ */
+public class AccessTrace {
+
+    public static final int MAGIC = 0x504c5452; // "PLTR"
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 4 + 2;
+    public static final int RECORD_SIZE = 8 + 4 + 1;
+
+    public static final byte TIER_MEMORY = 0;
+    public static final byte TIER_DISK = 1;
+    public static final byte TIER_NETWORK = 2;
+
+    private long[] keys;
+    private int[] sizes;
+    private byte[] tiers;
+    private int count;
+
+    private AccessTrace(int capacity) {
+        keys = new long[capacity];
+        sizes = new int[capacity];
+        tiers = new byte[capacity];
+    }
+
+    /**
+     * Reads the complete records of a trace file written by {@link AccessTraceRecorder}.
+     */
+    public static AccessTrace read(File file) throws IOException {
+        long records = completeRecords(file.length());
+        if (records < 0) {
+            throw new IOException("Not an access trace: " + file);
+        }
+        if (records > Integer.MAX_VALUE - 8) {
+            throw new IOException("Trace too large: " + file);
+        }
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Not an access trace: " + file);
+            }
+            short version = input.readShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported trace version " + version);
+            }
+            AccessTrace trace = new AccessTrace(Math.max(16, (int) records));
+            for (long i = 0; i < records; i++) {
+                trace.add(input.readLong(), input.readInt(), input.readByte());
+            }
+            return trace;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Number of complete records in a trace file of the given length, -1 when it is too short to
+     * hold the header.
+     */
+    static long completeRecords(long length) {
+        return length < HEADER_SIZE ? -1 : (length - HEADER_SIZE) / RECORD_SIZE;
+    }
+
+    private void add(long key, int size, byte tier) {
+        if (count == keys.length) {
+            int capacity = count * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            tiers = Arrays.copyOf(tiers, capacity);
+        }
+        keys[count] = key;
+        sizes[count] = size;
+        tiers[count] = tier;
+        count++;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the key, used as the key identity in trace files.
+     */
+    public static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public long keyAt(int index) {
+        return keys[index];
+    }
+
+    public int sizeAt(int index) {
+        return sizes[index];
+    }
+
+    public byte tierAt(int index) {
+        return tiers[index];
+    }
+}
@@ -0,0 +1,79 @@
+package com.picload.simulator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Appends image accesses to a trace file in the {@link AccessTrace} format. Safe to call from
+ * any thread, errors disable the recorder instead of failing the load.
+ */
+public class AccessTraceRecorder {
+
+    private DataOutputStream output;
+
+    /**
+     * Opens the trace file, appending to it when it already holds records. A record left
+     * incomplete by a killed process is dropped first, so the appended ones stay aligned.
+     */
+    public AccessTraceRecorder(File file) throws IOException {
+        long records = AccessTrace.completeRecords(file.length());
+        boolean append = records >= 0;
+        FileOutputStream stream = new FileOutputStream(file, append);
+        if (append) {
+            try {
+                stream.getChannel().truncate(AccessTrace.HEADER_SIZE + records * AccessTrace.RECORD_SIZE);
+            } catch (IOException e) {
+                stream.close();
+                throw e;
+            }
+        }
+        output = new DataOutputStream(new BufferedOutputStream(stream));
+        if (!append) {
+            output.writeInt(AccessTrace.MAGIC);
+            output.writeShort(AccessTrace.VERSION);
+        }
+    }
+
+    /**
+     * Records one access.
+     *
+     * @param key  cache key of the image
+     * @param size size of the decoded bitmap in bytes
+     * @param tier one of the AccessTrace.TIER_ constants
+     */
+    public synchronized void record(String key, int size, byte tier) {
+        if (output == null) return;
+        try {
+            output.writeLong(AccessTrace.hash(key));
+            output.writeInt(size);
+            output.writeByte(tier);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Writes the buffered records to the file. Records are buffered in memory until then, call it
+     * before the process may be killed.
+     */
+    public synchronized void flush() {
+        if (output == null) return;
+        try {
+            output.flush();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    public synchronized void close() {
+        if (output == null) return;
+        try {
+            output.close();
+        } catch (IOException ignored) {
+        }
+        output = null;
+    }
+}
@@ -3,8 +3,6 @@ package com.picload.ui;
 import android.content.ComponentCallbacks2;
 import android.graphics.Bitmap;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Looper;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ImageView;
@@ -31,10 +29,11 @@ import java.util.List;
 
 public class MainActivity extends AppCompatActivity implements BitmapCallback, ComponentCallbacks2 {
 
+    private static final String IMAGE_VIEW_TARGET = "imageview";
+
     private Button previous, next;
     private ImageView imageView;
     private List<PhotoData> photoDataList;
-    private Handler uiHandler = new Handler(Looper.getMainLooper());
     private AppDoubleCache cache;
 
     @Override
@@ -123,21 +122,24 @@ public class MainActivity extends AppCompatActivity implements BitmapCallback, C
         }
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        ImageLoader.getInstance().flushAccessTrace();
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (cache != null)
+            cache.saveHotSet();
         //ImageLoader.getInstance().clearCache();
     }
 
     @Override
-    public void getBitmap(final Bitmap bitmap, final CacheParams cacheParams) {
-        uiHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                if (!isFinishing() && imageView != null && cacheParams.getTag().equals(imageView.getTag()))
-                    imageView.setImageBitmap(bitmap);
-            }
-        });
+    public void getBitmap(Bitmap bitmap, CacheParams cacheParams) {
+        if (!isFinishing() && imageView != null && cacheParams.getTag().equals(imageView.getTag()))
+            imageView.setImageBitmap(bitmap);
     }
 
     /**
@@ -148,10 +150,10 @@ public class MainActivity extends AppCompatActivity implements BitmapCallback, C
             Utility.showToastMessage(this, "Internet not available.");
             return;
         }
-        String url = Utility.getUrl(data);
         imageView.setTag(data.getId());
-        CacheParams params = new CacheParams(url, data.getId());
-        ImageLoader.getInstance().displayImage(params);
+        int targetSize = Math.max(imageView.getWidth(), imageView.getHeight());
+        ImageLoader.getInstance().displayPhoto(data, IMAGE_VIEW_TARGET, data.getId(), targetSize,
+                Utility.isActiveNetworkMetered(getApplicationContext()));
     }
 
     @Override
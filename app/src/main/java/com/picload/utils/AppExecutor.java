@@ -1,18 +1,42 @@
 package com.picload.utils;
 
+import android.os.Process;
+
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class AppExecutor {
     private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
     private static final int CORE_POOL_SIZE = Math.max(2, Math.min(CPU_COUNT - 1, 4));
     private static final ExecutorService executorService;
+    private static final ExecutorService lowPriorityExecutorService;
 
     static {
         executorService = Executors.newFixedThreadPool(CORE_POOL_SIZE);
+        lowPriorityExecutorService = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "low-priority");
+            }
+        });
     }
 
     public static void submitTask(Runnable runnable) {
         executorService.submit(runnable);
     }
+
+    /**
+     * Runs work which should never compete with visible loads, like background revalidation,
+     * one task at a time on a background priority thread.
+     */
+    public static void submitLowPriorityTask(Runnable runnable) {
+        lowPriorityExecutorService.submit(runnable);
+    }
 }
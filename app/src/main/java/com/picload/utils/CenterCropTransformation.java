@@ -0,0 +1,35 @@
+package com.picload.utils;
+
+import android.graphics.Bitmap;
+
+import com.picload.interfaces.Transformation;
+
+/**
+ * Scales the bitmap to fill the given size keeping its aspect ratio, cropping the overflow
+ * equally on both sides.
+ */
+public class CenterCropTransformation implements Transformation {
+
+    private final int width;
+    private final int height;
+
+    public CenterCropTransformation(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    @Override
+    public Bitmap transform(Bitmap source) {
+        float scale = Math.max((float) width / source.getWidth(), (float) height / source.getHeight());
+        int cropWidth = Math.min(source.getWidth(), Math.round(width / scale));
+        int cropHeight = Math.min(source.getHeight(), Math.round(height / scale));
+        Bitmap cropped = Bitmap.createBitmap(source, (source.getWidth() - cropWidth) / 2,
+                (source.getHeight() - cropHeight) / 2, cropWidth, cropHeight);
+        return Bitmap.createScaledBitmap(cropped, width, height, true);
+    }
+
+    @Override
+    public String key() {
+        return "centerCrop(" + width + "," + height + ")";
+    }
+}
@@ -0,0 +1,179 @@
+package com.picload.utils;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import com.picload.interfaces.BitmapCallback;
+import com.picload.interfaces.TileCallback;
+import com.picload.models.CacheParams;
+import com.picload.models.Tile;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects the bitmaps finished by worker threads and hands them to the UI in one batch per frame,
+ * on the Choreographer frame callback, instead of posting one message per image.
+ * <p>
+ * Results whose target has been rebound to another tag before the frame are dropped, and only the
+ * latest result of a target is delivered. Tiles of large images go through the same batches and
+ * are dropped once their request is superseded. Delivery stops once the frame budget is spent,
+ * the rest is carried over to the next frame.
+ */
+class FrameDeliveryDispatcher implements Choreographer.FrameCallback {
+
+    private static final long FRAME_BUDGET_NANOS = 4 * 1000 * 1000;
+
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, String> targetBindings = new ConcurrentHashMap<>();
+    private final List<Delivery> pending = new ArrayList<>();
+    private boolean frameScheduled;
+    private volatile BitmapCallback bitmapCallback;
+
+    private final Runnable scheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(FrameDeliveryDispatcher.this);
+        }
+    };
+
+    void setBitmapCallback(BitmapCallback bitmapCallback) {
+        this.bitmapCallback = bitmapCallback;
+    }
+
+    /**
+     * Records the tag a target is now displaying, results for its previous tags become stale.
+     */
+    void bind(CacheParams cacheParams) {
+        if (cacheParams.getTarget() != null)
+            targetBindings.put(cacheParams.getTarget(), cacheParams.getTag());
+    }
+
+    /**
+     * Queues the bitmap for the next frame. On the main thread with nothing queued the bitmap is
+     * delivered right away, there is no burst to batch and waiting would cost a frame.
+     */
+    void dispatch(Bitmap bitmap, CacheParams cacheParams, RequestTrace trace) {
+        RequestTracer.retain(trace);
+        enqueue(new Delivery(bitmap, cacheParams, trace, null, null));
+    }
+
+    /**
+     * Queues a decoded tile for the next frame, delivered to the callback of the request if it is
+     * still its latest one.
+     */
+    void dispatchTile(Tile tile, TileRequest request) {
+        enqueue(new Delivery(tile.getBitmap(), null, null, tile, request));
+    }
+
+    private void enqueue(Delivery delivery) {
+        boolean mainThread = Looper.myLooper() == Looper.getMainLooper();
+        synchronized (pending) {
+            if (!(mainThread && pending.isEmpty())) {
+                pending.add(delivery);
+                if (frameScheduled)
+                    return;
+                frameScheduled = true;
+                delivery = null;
+            }
+        }
+        if (delivery != null) {
+            deliver(delivery);
+        } else if (mainThread) {
+            scheduleFrame.run();
+        } else {
+            uiHandler.post(scheduleFrame);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        List<Delivery> batch;
+        synchronized (pending) {
+            batch = new ArrayList<>(pending);
+            pending.clear();
+        }
+        long deadline = System.nanoTime() + FRAME_BUDGET_NANOS;
+        List<Delivery> deliveries = latestPerTarget(batch);
+        int delivered = 0;
+        while (delivered < deliveries.size() && System.nanoTime() < deadline) {
+            deliver(deliveries.get(delivered++));
+        }
+        synchronized (pending) {
+            if (delivered < deliveries.size()) {
+                pending.addAll(0, deliveries.subList(delivered, deliveries.size()));
+            }
+            if (pending.isEmpty()) {
+                frameScheduled = false;
+            } else {
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+    }
+
+    /**
+     * Drops results for rebound targets and keeps only the most recent result of each target.
+     */
+    private List<Delivery> latestPerTarget(List<Delivery> batch) {
+        Map<Object, Delivery> latest = new LinkedHashMap<>();
+        for (Delivery delivery : batch) {
+            String target = delivery.cacheParams != null ? delivery.cacheParams.getTarget() : null;
+            Object key = target != null ? target : delivery;
+            Delivery replaced = latest.remove(key);
+            if (replaced != null)
+                RequestTracer.finish(replaced.trace);
+            if (isCurrent(delivery)) {
+                latest.put(key, delivery);
+            } else {
+                RequestTracer.finish(delivery.trace);
+            }
+        }
+        return new ArrayList<>(latest.values());
+    }
+
+    private boolean isCurrent(Delivery delivery) {
+        if (delivery.tileRequest != null)
+            return delivery.tileRequest.currentCallback() != null;
+        CacheParams cacheParams = delivery.cacheParams;
+        if (cacheParams.getTarget() == null)
+            return true;
+        String tag = targetBindings.get(cacheParams.getTarget());
+        return tag == null || tag.equals(cacheParams.getTag());
+    }
+
+    private void deliver(Delivery delivery) {
+        if (delivery.tileRequest != null) {
+            TileCallback tileCallback = delivery.tileRequest.currentCallback();
+            if (tileCallback != null)
+                tileCallback.onTileLoaded(delivery.tile);
+            return;
+        }
+        BitmapCallback callback = bitmapCallback;
+        if (callback != null && isCurrent(delivery))
+            callback.getBitmap(delivery.bitmap, delivery.cacheParams);
+        RequestTracer.end(delivery.trace, RequestTrace.Stage.UI_DELIVERY);
+        RequestTracer.finish(delivery.trace);
+    }
+
+    private static class Delivery {
+        final Bitmap bitmap;
+        final CacheParams cacheParams;
+        final RequestTrace trace;
+        final Tile tile;
+        final TileRequest tileRequest;
+
+        Delivery(Bitmap bitmap, CacheParams cacheParams, RequestTrace trace, Tile tile,
+                 TileRequest tileRequest) {
+            this.bitmap = bitmap;
+            this.cacheParams = cacheParams;
+            this.trace = trace;
+            this.tile = tile;
+            this.tileRequest = tileRequest;
+        }
+    }
+}
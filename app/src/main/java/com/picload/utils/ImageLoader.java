@@ -1,18 +1,65 @@
 package com.picload.utils;
 
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.util.Log;
 
+import com.picload.cache.FailedUrlCache;
 import com.picload.cache.ImageCache;
 import com.picload.interfaces.BitmapCallback;
+import com.picload.interfaces.TileCallback;
+import com.picload.interfaces.Transformation;
 import com.picload.models.CacheParams;
+import com.picload.models.EntryMetadata;
+import com.picload.models.FailureType;
+import com.picload.models.ImageResponse;
+import com.picload.models.PhotoData;
+import com.picload.models.SizeVariant;
+import com.picload.models.Tile;
+import com.picload.simulator.AccessTrace;
+import com.picload.simulator.AccessTraceRecorder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class ImageLoader {
 
+    private static final String TAG = "ImageLoader";
+
     private ImageCache cache;
-    private BitmapCallback bitmapCallback;
+    private final FrameDeliveryDispatcher deliveryDispatcher = new FrameDeliveryDispatcher();
+    private final FailedUrlCache failedUrls = new FailedUrlCache();
+    private volatile AccessTraceRecorder traceRecorder;
     private static volatile ImageLoader INSTANCE;
 
+    /**
+     * Requests waiting on an in flight revalidation, keyed by url so concurrent binds of the
+     * same stale image share one conditional request.
+     */
+    private final Map<String, List<CacheParams>> revalidations = new ConcurrentHashMap<>();
+
+    /**
+     * Striped locks serializing downloads into the same partial file. Downloads in other processes
+     * sharing the disk cache are waited for with the cache's own download lock.
+     */
+    private final Object[] downloadLocks = new Object[16];
+    private final TileDecoder tileDecoder = new TileDecoder();
+
+    private ImageLoader() {
+        for (int i = 0; i < downloadLocks.length; i++) {
+            downloadLocks[i] = new Object();
+        }
+    }
+
     public static ImageLoader getInstance() {
         if (INSTANCE == null) {
             synchronized (ImageLoader.class) {
@@ -28,41 +75,675 @@ public class ImageLoader {
         cache = imageCache;
     }
 
+    /**
+     * The callback is invoked on the main thread, finished images are delivered in batches
+     * aligned to frames.
+     */
     public void setBitmapCallBack(BitmapCallback bitmapCallBack) {
-        this.bitmapCallback = bitmapCallBack;
+        deliveryDispatcher.setBitmapCallback(bitmapCallBack);
+    }
+
+    /**
+     * Records every access with the tier which served it, for offline replay by the
+     * CacheSimulator. Pass null to stop recording.
+     */
+    public void setAccessTraceRecorder(AccessTraceRecorder recorder) {
+        this.traceRecorder = recorder;
     }
 
     /**
-     * Fetching image from cache or from url if not found in cache.
+     * Writes the recorded accesses to the trace file. Call when the app goes to the background,
+     * its process may be killed without notice from then on.
+     */
+    public void flushAccessTrace() {
+        AccessTraceRecorder recorder = traceRecorder;
+        if (recorder != null)
+            recorder.flush();
+    }
+
+    /**
+     * Fetching image from cache or from url if not found in cache. When the params carry
+     * transformations the transformed bitmap is cached under its own key, binding it again is a
+     * plain cache hit. On a miss it is derived from the cached source before going to the network.
      *
      * @param cacheParams Params with url and tag
      */
     public void displayImage(final CacheParams cacheParams) {
-        Bitmap cachedBitmap = cache.get(cacheParams.getUrl());
+        deliveryDispatcher.bind(cacheParams);
+        final String key = cacheParams.getCacheKey();
+        final RequestTrace trace = RequestTracer.start(key);
+        byte tier = AccessTrace.TIER_MEMORY;
+        Bitmap cachedBitmap = null;
+        RequestTracer.begin(trace, RequestTrace.Stage.MEMORY_PROBE);
+        if (cache instanceof ImageCache.Tiered)
+            cachedBitmap = ((ImageCache.Tiered) cache).getFromMemory(key);
+        RequestTracer.end(trace, RequestTrace.Stage.MEMORY_PROBE);
+        if (cachedBitmap == null && (!cacheParams.hasTransformations() || cacheParams.isCacheTransformedOnDisk())) {
+            RequestTracer.begin(trace, RequestTrace.Stage.DISK_PROBE);
+            cachedBitmap = cache.get(key);
+            RequestTracer.end(trace, RequestTrace.Stage.DISK_PROBE);
+            tier = AccessTrace.TIER_DISK;
+        }
         if (cachedBitmap != null) {
-            updateImageView(cachedBitmap, cacheParams);
+            recordAccess(key, cachedBitmap, tier);
+            updateImageView(cachedBitmap, cacheParams, trace);
+            RequestTracer.finish(trace);
+            revalidateIfExpired(cacheParams);
             return;
         }
+        if (!cacheParams.hasTransformations() && failedUrls.shouldSkip(cacheParams.getUrl())) {
+            RequestTracer.finish(trace);
+            return;
+        }
+        RequestTracer.begin(trace, RequestTrace.Stage.QUEUE_WAIT);
+        AppExecutor.submitTask(new Runnable() {
+            @Override
+            public void run() {
+                RequestTracer.end(trace, RequestTrace.Stage.QUEUE_WAIT);
+                if (cacheParams.hasTransformations()) {
+                    RequestTracer.begin(trace, RequestTrace.Stage.DISK_PROBE);
+                    Bitmap source = cache.get(cacheParams.getUrl());
+                    RequestTracer.end(trace, RequestTrace.Stage.DISK_PROBE);
+                    if (source != null) {
+                        Bitmap transformed = transform(source, cacheParams, trace);
+                        // Derived from the cached source, a miss of the memory tier served without
+                        // going to the network.
+                        recordAccess(cacheParams.getCacheKey(), transformed, AccessTrace.TIER_DISK);
+                        updateImageView(transformed, cacheParams, trace);
+                        storeTransformed(cacheParams, source, transformed, null);
+                        RequestTracer.finish(trace);
+                        revalidateIfExpired(cacheParams);
+                        return;
+                    }
+                    if (failedUrls.shouldSkip(cacheParams.getUrl())) {
+                        RequestTracer.finish(trace);
+                        return;
+                    }
+                }
+                loadFromNetwork(cacheParams, trace);
+            }
+        });
+    }
+
+    /**
+     * Displays the visible region of a large image as tiles decoded from its cached file at the
+     * sample size of the current zoom, instead of decoding the whole image. Tiles are kept in the
+     * memory tier under their own keys, so however large the image only the tiles on screen are
+     * held in memory. The image is downloaded to the disk cache first if needed. Tiles already in
+     * memory are delivered right away, the others as they are decoded, batched per frame with the
+     * other images. Must be called from the main thread, again on every pan or zoom, tiles of the
+     * previous call for the callback are dropped.
+     *
+     * @param cacheParams  Params with the url of the image
+     * @param visible      visible region in image pixels
+     * @param scale        displayed size of an image pixel, 1 at full resolution
+     * @param tileCallback receives the tiles on the main thread
+     */
+    public void displayTiles(final CacheParams cacheParams, Rect visible, float scale,
+                             TileCallback tileCallback) {
+        if (scale <= 0) {
+            throw new IllegalArgumentException("scale <= 0");
+        }
+        final TileRequest request = TileRequest.start(tileCallback);
+        final List<Tile> missing = new ArrayList<>();
+        for (Tile tile : TileDecoder.tilesFor(cacheParams.getUrl(), visible, TileDecoder.sampleSizeFor(scale))) {
+            Bitmap bitmap = getTileFromMemory(tile);
+            if (bitmap != null) {
+                recordAccess(tile.getKey(), bitmap, AccessTrace.TIER_MEMORY);
+                tile.setBitmap(bitmap);
+                deliveryDispatcher.dispatchTile(tile, request);
+            } else {
+                missing.add(tile);
+            }
+        }
+        if (missing.isEmpty() || !(cache instanceof ImageCache.Resumable)
+                || failedUrls.shouldSkip(cacheParams.getUrl()))
+            return;
+        AppExecutor.submitTask(new Runnable() {
+            @Override
+            public void run() {
+                if (request.currentCallback() == null)
+                    return;
+                File file = fetchFile(cacheParams);
+                if (file == null)
+                    return;
+                for (Tile tile : missing) {
+                    if (request.currentCallback() == null)
+                        return;
+                    // A previous request may have decoded the tile since it was probed.
+                    Bitmap bitmap = getTileFromMemory(tile);
+                    if (bitmap == null) {
+                        bitmap = tileDecoder.decode(file, tile);
+                        if (bitmap == null)
+                            continue;
+                        if (cache instanceof ImageCache.Tiered)
+                            ((ImageCache.Tiered) cache).putInMemory(tile.getKey(), bitmap);
+                        recordAccess(tile.getKey(), bitmap, AccessTrace.TIER_DISK);
+                    }
+                    tile.setBitmap(bitmap);
+                    deliveryDispatcher.dispatchTile(tile, request);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops delivering tiles to the callback, queued tiles are dropped. Callbacks are weakly
+     * referenced, a callback which is not cancelled is still released with its view.
+     */
+    public void cancelTiles(TileCallback tileCallback) {
+        TileRequest.cancel(tileCallback);
+    }
+
+    private Bitmap getTileFromMemory(Tile tile) {
+        return cache instanceof ImageCache.Tiered
+                ? ((ImageCache.Tiered) cache).getFromMemory(tile.getKey()) : null;
+    }
+
+    /**
+     * Fetching the size variant of a photo fitting the target size, a smaller one on metered
+     * networks. Until it is available the best variant already cached is shown instead, so the
+     * view never stays blank while a large image downloads.
+     *
+     * @param photoData  photo to display
+     * @param target     identifies the view the photo is displayed in, may be null
+     * @param tag        tag of the view the photo is displayed in
+     * @param targetSize longest edge of the view in pixels, 0 when unknown
+     * @param metered    whether the active network is metered
+     */
+    public void displayPhoto(final PhotoData photoData, String target, String tag, final int targetSize,
+                             boolean metered) {
+        // Views not laid out yet report no size, fall back to the default square thumbnail.
+        SizeVariant wanted = targetSize > 0 ? SizeVariant.forSize(targetSize) : SizeVariant.LARGE_SQUARE;
+        if (metered)
+            wanted = wanted.smaller();
+        final SizeVariant variant = wanted;
+        final CacheParams cacheParams = new CacheParams(Utility.getUrl(photoData, variant), tag);
+        cacheParams.setTarget(target);
+        deliveryDispatcher.bind(cacheParams);
+        final RequestTrace trace = RequestTracer.start(cacheParams.getUrl());
+        boolean placeholderShown = false;
+        if (cache instanceof ImageCache.Tiered) {
+            ImageCache.Tiered tiered = (ImageCache.Tiered) cache;
+            RequestTracer.begin(trace, RequestTrace.Stage.MEMORY_PROBE);
+            Bitmap bitmap = tiered.getFromMemory(cacheParams.getUrl());
+            RequestTracer.end(trace, RequestTrace.Stage.MEMORY_PROBE);
+            if (bitmap != null) {
+                recordAccess(cacheParams.getUrl(), bitmap, AccessTrace.TIER_MEMORY);
+                updateImageView(bitmap, cacheParams, trace);
+                RequestTracer.finish(trace);
+                revalidateIfExpired(cacheParams);
+                return;
+            }
+            for (SizeVariant other : variant.placeholderOrder()) {
+                Bitmap placeholder = tiered.getFromMemory(Utility.getUrl(photoData, other));
+                if (placeholder != null) {
+                    updateImageView(placeholder, cacheParams);
+                    placeholderShown = true;
+                    break;
+                }
+            }
+        }
+        final boolean memoryPlaceholderShown = placeholderShown;
+        RequestTracer.begin(trace, RequestTrace.Stage.QUEUE_WAIT);
         AppExecutor.submitTask(new Runnable() {
             @Override
             public void run() {
-                Bitmap bitmap = Utility.getBitmapFromURL(cacheParams.getUrl());
+                RequestTracer.end(trace, RequestTrace.Stage.QUEUE_WAIT);
+                RequestTracer.begin(trace, RequestTrace.Stage.DISK_PROBE);
+                Bitmap bitmap = cache.get(cacheParams.getUrl());
+                RequestTracer.end(trace, RequestTrace.Stage.DISK_PROBE);
                 if (bitmap != null) {
-                    updateImageView(bitmap, cacheParams);
-                    cache.put(cacheParams.getUrl(), bitmap);
+                    recordAccess(cacheParams.getUrl(), bitmap, AccessTrace.TIER_DISK);
+                    updateImageView(bitmap, cacheParams, trace);
+                    RequestTracer.finish(trace);
+                    revalidateIfExpired(cacheParams);
+                    return;
                 }
+                if (!memoryPlaceholderShown) {
+                    // Probing decodes nothing, only the best placeholder cached is decoded.
+                    for (SizeVariant other : variant.placeholderOrder()) {
+                        String placeholderUrl = Utility.getUrl(photoData, other);
+                        if (cache.containsAll(Collections.singletonList(placeholderUrl))) {
+                            Bitmap placeholder = decodePlaceholder(placeholderUrl, targetSize);
+                            if (placeholder != null)
+                                updateImageView(placeholder, cacheParams);
+                            break;
+                        }
+                    }
+                }
+                if (failedUrls.shouldSkip(cacheParams.getUrl())) {
+                    RequestTracer.finish(trace);
+                    return;
+                }
+                loadFromNetwork(cacheParams, trace);
             }
         });
     }
 
+    /**
+     * Decodes a cached variant shown until the wanted one arrives, sampled down to the target size
+     * when its file can be read directly. Placeholders are short lived and never cached again.
+     *
+     * @return the placeholder, null if it went away since it was probed
+     */
+    private Bitmap decodePlaceholder(String url, int targetSize) {
+        if (cache instanceof ImageCache.Tiered) {
+            Bitmap bitmap = ((ImageCache.Tiered) cache).getFromMemory(url);
+            if (bitmap != null)
+                return bitmap;
+        }
+        if (targetSize <= 0 || !(cache instanceof ImageCache.Resumable))
+            return cache.get(url);
+        File file = ((ImageCache.Resumable) cache).getFile(url);
+        if (file == null)
+            return null;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+        options.inSampleSize = TileDecoder.sampleSizeFor(
+                (float) targetSize / Math.max(options.outWidth, options.outHeight));
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeFile(file.getPath(), options);
+    }
+
+    /**
+     * Downloads, delivers and caches the image. Must be called from a worker thread.
+     */
+    private void loadFromNetwork(CacheParams cacheParams, RequestTrace trace) {
+        Bitmap bitmap;
+        EntryMetadata metadata = null;
+        boolean cached = isResumable(cacheParams.getUrl());
+        if (cached) {
+            bitmap = downloadToCache(cacheParams, trace);
+        } else {
+            ImageResponse response = download(cacheParams.getUrl(), trace);
+            bitmap = response.getBitmap();
+            metadata = response.getMetadata();
+        }
+        if (bitmap == null) {
+            RequestTracer.finish(trace);
+            return;
+        }
+        Bitmap displayed = cacheParams.hasTransformations() ? transform(bitmap, cacheParams, trace) : bitmap;
+        updateImageView(displayed, cacheParams, trace);
+        RequestTracer.begin(trace, RequestTrace.Stage.DISK_WRITE);
+        if (!cached)
+            putInCache(cacheParams, bitmap, metadata);
+        if (cacheParams.hasTransformations())
+            storeTransformed(cacheParams, bitmap, displayed, metadata);
+        RequestTracer.end(trace, RequestTrace.Stage.DISK_WRITE);
+        RequestTracer.finish(trace);
+    }
+
+    private boolean isResumable(String url) {
+        return cache instanceof ImageCache.Resumable
+                && ((ImageCache.Resumable) cache).getPartialFile(url) != null;
+    }
+
+    /**
+     * Downloads the image into the disk cache unless another worker or process just did, then
+     * decodes the committed entry and keeps it in memory.
+     *
+     * @return the decoded bitmap, null on failure
+     */
+    private Bitmap downloadToCache(CacheParams cacheParams, RequestTrace trace) {
+        final String url = cacheParams.getUrl();
+        synchronized (downloadLock(url)) {
+            Closeable processLock = ((ImageCache.Resumable) cache).lockDownload(url);
+            try {
+                // Another worker or process may have completed the same download while this one
+                // was waiting.
+                Bitmap cached = cache.get(url);
+                if (cached != null)
+                    return cached;
+                Bitmap bitmap = null;
+                File file = downloadFileLocked(cacheParams, trace);
+                if (file != null) {
+                    RequestTracer.begin(trace, RequestTrace.Stage.DECODE);
+                    bitmap = BitmapFactory.decodeFile(file.getPath());
+                    RequestTracer.end(trace, RequestTrace.Stage.DECODE);
+                    if (bitmap == null) {
+                        // Not an image, don't serve it from the disk cache either.
+                        ((ImageCache.Resumable) cache).remove(url);
+                        failedUrls.recordFailure(url, FailureType.DECODE);
+                    } else {
+                        failedUrls.recordSuccess(url);
+                        if (cache instanceof ImageCache.Tiered)
+                            ((ImageCache.Tiered) cache).putInMemory(url, bitmap);
+                    }
+                }
+                recordAccess(url, bitmap, AccessTrace.TIER_NETWORK);
+                return bitmap;
+            } finally {
+                releaseQuietly(processLock);
+            }
+        }
+    }
+
+    /**
+     * Returns the cached file of the image, downloading it into the disk cache without decoding
+     * it when it is missing, for images too large to be decoded at once.
+     *
+     * @return the entry file, null on failure
+     */
+    private File fetchFile(CacheParams cacheParams) {
+        final String url = cacheParams.getUrl();
+        final ImageCache.Resumable resumable = (ImageCache.Resumable) cache;
+        synchronized (downloadLock(url)) {
+            Closeable processLock = resumable.lockDownload(url);
+            try {
+                File file = resumable.getFile(url);
+                if (file == null) {
+                    file = downloadFileLocked(cacheParams, null);
+                    if (file != null)
+                        failedUrls.recordSuccess(url);
+                    // Not decoded as a whole, the size of the downloaded file is the cost of the miss.
+                    recordAccess(url, file != null ? (int) Math.min(file.length(), Integer.MAX_VALUE) : 0,
+                            AccessTrace.TIER_NETWORK);
+                }
+                return file;
+            } finally {
+                releaseQuietly(processLock);
+            }
+        }
+    }
+
+    /**
+     * Downloads the body straight into the disk cache, resuming the bytes kept from an interrupted
+     * attempt. Caller must hold the download locks of the url.
+     *
+     * @return the committed entry file, null on failure
+     */
+    private File downloadFileLocked(CacheParams cacheParams, RequestTrace trace) {
+        final String url = cacheParams.getUrl();
+        final ImageCache.Resumable resumable = (ImageCache.Resumable) cache;
+        // What was received is kept for the next attempt, along with the validators to resume it.
+        ImageResponse response = Utility.downloadToFile(url, resumable, trace);
+        if (response.getFailureType() != null) {
+            failedUrls.recordFailure(url, response.getFailureType());
+            return null;
+        }
+        RequestTracer.begin(trace, RequestTrace.Stage.DISK_WRITE);
+        File file = resumable.commitDownload(url, resumable.getPartialFile(url),
+                applyMaxAge(response.getMetadata(), cacheParams));
+        RequestTracer.end(trace, RequestTrace.Stage.DISK_WRITE);
+        if (file == null)
+            failedUrls.recordFailure(url, FailureType.STORAGE);
+        return file;
+    }
+
+    private Object downloadLock(String url) {
+        return downloadLocks[(url.hashCode() & 0x7fffffff) % downloadLocks.length];
+    }
+
+    private static void releaseQuietly(Closeable lock) {
+        if (lock != null) {
+            try {
+                lock.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error releasing download lock: " + e.getMessage());
+            }
+        }
+    }
+
+    private static Bitmap transform(Bitmap source, CacheParams cacheParams, RequestTrace trace) {
+        RequestTracer.begin(trace, RequestTrace.Stage.TRANSFORM);
+        Bitmap bitmap = source;
+        for (Transformation transformation : cacheParams.getTransformations()) {
+            bitmap = transformation.transform(bitmap);
+        }
+        RequestTracer.end(trace, RequestTrace.Stage.TRANSFORM);
+        return bitmap;
+    }
+
+    /**
+     * Caches a transformed bitmap under its transformation key, in memory only unless the params
+     * ask for disk too. With metadata the disk entry is replaced, used when the source changed.
+     * Transformations leaving the source untouched return the source itself, it is already cached
+     * under its url and storing it again would count its bytes twice.
+     */
+    private void storeTransformed(CacheParams cacheParams, Bitmap source, Bitmap bitmap, EntryMetadata metadata) {
+        if (bitmap == source)
+            return;
+        String key = cacheParams.getCacheKey();
+        if (!cacheParams.isCacheTransformedOnDisk() && cache instanceof ImageCache.Tiered) {
+            ((ImageCache.Tiered) cache).putInMemory(key, bitmap);
+        } else if (metadata != null && cache instanceof ImageCache.Revalidatable) {
+            ((ImageCache.Revalidatable) cache).put(key, bitmap, metadata);
+        } else {
+            cache.put(key, bitmap);
+        }
+    }
+
+    /**
+     * Downloads the image, remembering failed urls so they back off before the next attempt.
+     */
+    private ImageResponse download(String url, RequestTrace trace) {
+        ImageResponse response = Utility.getImage(url, null, trace);
+        recordAccess(url, response.getBitmap(), AccessTrace.TIER_NETWORK);
+        if (response.getFailureType() != null) {
+            failedUrls.recordFailure(url, response.getFailureType());
+        } else {
+            failedUrls.recordSuccess(url);
+        }
+        return response;
+    }
+
+    private void putInCache(CacheParams cacheParams, Bitmap bitmap, EntryMetadata metadata) {
+        if (cache instanceof ImageCache.Revalidatable && metadata != null) {
+            ((ImageCache.Revalidatable) cache).put(cacheParams.getUrl(), bitmap,
+                    applyMaxAge(metadata, cacheParams));
+        } else {
+            cache.put(cacheParams.getUrl(), bitmap);
+        }
+    }
+
+    /**
+     * Caller set time to live takes precedence over the expiry sent by the server.
+     */
+    private static EntryMetadata applyMaxAge(EntryMetadata metadata, CacheParams cacheParams) {
+        if (cacheParams.getMaxAge() > 0) {
+            metadata.setExpiresAt(System.currentTimeMillis() + cacheParams.getMaxAge());
+        }
+        return metadata;
+    }
+
+    /**
+     * Serving stale while revalidating, the cached bitmap has already been delivered and an
+     * expired entry is refreshed with a low priority conditional request. Concurrent requests
+     * for the same url join the revalidation in flight instead of issuing their own. The expiry
+     * is read on the low priority thread, the disk index lock may be held by a decode or an
+     * encode and must never be waited for on the main thread.
+     */
+    private void revalidateIfExpired(final CacheParams cacheParams) {
+        if (!(cache instanceof ImageCache.Revalidatable))
+            return;
+        final ImageCache.Revalidatable revalidatable = (ImageCache.Revalidatable) cache;
+        final String url = cacheParams.getUrl();
+        synchronized (revalidations) {
+            List<CacheParams> waiting = revalidations.get(url);
+            if (waiting != null) {
+                waiting.add(cacheParams);
+                return;
+            }
+            waiting = new ArrayList<>();
+            waiting.add(cacheParams);
+            revalidations.put(url, waiting);
+        }
+        AppExecutor.submitLowPriorityTask(new Runnable() {
+            @Override
+            public void run() {
+                final EntryMetadata current = revalidatable.getMetadata(url);
+                if (current == null || !current.isExpired(System.currentTimeMillis())
+                        || failedUrls.shouldSkip(url)) {
+                    synchronized (revalidations) {
+                        revalidations.remove(url);
+                    }
+                    return;
+                }
+                ImageResponse response = Utility.getImage(url, current.hasValidators() ? current : null);
+                List<CacheParams> waiting;
+                synchronized (revalidations) {
+                    waiting = revalidations.remove(url);
+                }
+                if (response.getFailureType() != null) {
+                    failedUrls.recordFailure(url, response.getFailureType());
+                    return;
+                }
+                failedUrls.recordSuccess(url);
+                EntryMetadata refreshed = response.getMetadata();
+                if (refreshed == null)
+                    return;
+                applyMaxAge(refreshed, cacheParams);
+                if (response.isNotModified()) {
+                    // 304 may omit the validators, keep the ones we already had.
+                    if (refreshed.getEtag() == null)
+                        refreshed.setEtag(current.getEtag());
+                    if (refreshed.getLastModified() == null)
+                        refreshed.setLastModified(current.getLastModified());
+                    revalidatable.updateMetadata(url, refreshed);
+                } else if (response.getBitmap() != null) {
+                    revalidatable.put(url, response.getBitmap(), refreshed);
+                    for (CacheParams params : waiting) {
+                        if (params.hasTransformations()) {
+                            Bitmap transformed = transform(response.getBitmap(), params, null);
+                            updateImageView(transformed, params);
+                            storeTransformed(params, response.getBitmap(), transformed, refreshed);
+                        } else {
+                            updateImageView(response.getBitmap(), params);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Fetching a batch of images. Bitmaps already in memory are delivered right away, the rest
+     * are looked up on disk in one batch and only the remaining misses go to the network.
+     * Params with transformations are loaded one by one through displayImage.
+     *
+     * @param paramsList Params with url and tag for every image
+     */
+    public void displayImages(List<CacheParams> paramsList) {
+        final Map<String, List<CacheParams>> pending = new LinkedHashMap<>();
+        for (CacheParams params : paramsList) {
+            if (params.hasTransformations()) {
+                displayImage(params);
+                continue;
+            }
+            deliveryDispatcher.bind(params);
+            List<CacheParams> sameUrl = pending.get(params.getUrl());
+            if (sameUrl == null) {
+                sameUrl = new ArrayList<>(1);
+                pending.put(params.getUrl(), sameUrl);
+            }
+            sameUrl.add(params);
+        }
+        if (pending.isEmpty())
+            return;
+        if (cache instanceof ImageCache.Tiered) {
+            Map<String, Bitmap> memoryHits = ((ImageCache.Tiered) cache).getAllFromMemory(pending.keySet());
+            deliver(memoryHits, pending, AccessTrace.TIER_MEMORY);
+            if (pending.isEmpty())
+                return;
+        }
+        AppExecutor.submitTask(new Runnable() {
+            @Override
+            public void run() {
+                deliver(cache.getAll(new ArrayList<>(pending.keySet())), pending, AccessTrace.TIER_DISK);
+                for (final Map.Entry<String, List<CacheParams>> entry : pending.entrySet()) {
+                    if (failedUrls.shouldSkip(entry.getKey()))
+                        continue;
+                    AppExecutor.submitTask(new Runnable() {
+                        @Override
+                        public void run() {
+                            CacheParams first = entry.getValue().get(0);
+                            if (isResumable(entry.getKey())) {
+                                Bitmap bitmap = downloadToCache(first, null);
+                                if (bitmap != null) {
+                                    for (CacheParams params : entry.getValue()) {
+                                        updateImageView(bitmap, params);
+                                    }
+                                }
+                                return;
+                            }
+                            ImageResponse response = download(entry.getKey(), null);
+                            Bitmap bitmap = response.getBitmap();
+                            if (bitmap != null) {
+                                for (CacheParams params : entry.getValue()) {
+                                    updateImageView(bitmap, params);
+                                }
+                                putInCache(first, bitmap, response.getMetadata());
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Delivers the found bitmaps and removes their urls from the pending requests.
+     */
+    private void deliver(Map<String, Bitmap> found, Map<String, List<CacheParams>> pending, byte tier) {
+        for (Map.Entry<String, Bitmap> entry : found.entrySet()) {
+            List<CacheParams> requests = pending.remove(entry.getKey());
+            if (requests == null)
+                continue;
+            recordAccess(entry.getKey(), entry.getValue(), tier);
+            for (CacheParams params : requests) {
+                updateImageView(entry.getValue(), params);
+            }
+            for (CacheParams params : requests) {
+                revalidateIfExpired(params);
+            }
+        }
+    }
+
+    /**
+     * Appends the access to the trace when recording, failed loads are recorded with no size.
+     */
+    private void recordAccess(String key, Bitmap bitmap, byte tier) {
+        recordAccess(key, bitmap != null ? bitmap.getByteCount() : 0, tier);
+    }
+
+    private void recordAccess(String key, int size, byte tier) {
+        AccessTraceRecorder recorder = traceRecorder;
+        if (recorder != null)
+            recorder.record(key, size, tier);
+    }
+
+    /**
+     * Updating views for received bitmap, recording the delivery in the trace of the request.
+     */
+    private void updateImageView(Bitmap bitmap, CacheParams cacheParams, RequestTrace trace) {
+        RequestTracer.begin(trace, RequestTrace.Stage.UI_DELIVERY);
+        deliveryDispatcher.dispatch(bitmap, cacheParams, trace);
+    }
+
     /**
      * Updating views for received bitmap.
      */
     private void updateImageView(Bitmap cachedBitmap, CacheParams cacheParams) {
-        bitmapCallback.getBitmap(cachedBitmap, cacheParams);
+        deliveryDispatcher.dispatch(cachedBitmap, cacheParams, null);
     }
 
     public void clearCache() {
         cache.clear();
+        tileDecoder.clear();
+        failedUrls.clear();
+    }
+
+    /**
+     * Returns the loader counters, also logged.
+     */
+    public String dumpStats() {
+        String stats = "ImageLoader " + failedUrls;
+        Log.d(TAG, stats);
+        return stats;
     }
 }
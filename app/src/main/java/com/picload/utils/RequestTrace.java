@@ -0,0 +1,134 @@
+package com.picload.utils;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Timeline of one image request through the load pipeline. Created by {@link RequestTracer} only
+ * when tracing is enabled, every stage is recorded with its start offset and duration.
+ */
+public class RequestTrace {
+
+    public enum Stage {
+        MEMORY_PROBE(false),
+        DISK_PROBE(false),
+        QUEUE_WAIT(true),
+        CONNECT(false),
+        FIRST_BYTE(false),
+        DOWNLOAD(false),
+        DECODE(false),
+        TRANSFORM(false),
+        DISK_WRITE(false),
+        UI_DELIVERY(true);
+
+        /**
+         * Stages starting on one thread and ending on another are not emitted as systrace
+         * sections, which must begin and end on the same thread.
+         */
+        final boolean crossThread;
+
+        Stage(boolean crossThread) {
+            this.crossThread = crossThread;
+        }
+    }
+
+    private static final String SECTION_PREFIX = "picload:";
+
+    private final String key;
+    private final long startTime;
+    private final long[] stageStarts = new long[Stage.values().length];
+    private final long[] stageDurations = new long[Stage.values().length];
+    private long totalDuration = -1;
+
+    /**
+     * Parts of the pipeline still working on the request, the request ends when the last one
+     * finishes. Delivery to the UI and the disk write run concurrently.
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    RequestTrace(String key) {
+        this.key = key;
+        this.startTime = SystemClock.elapsedRealtime();
+        for (int i = 0; i < stageStarts.length; i++) {
+            stageStarts[i] = -1;
+            stageDurations[i] = -1;
+        }
+    }
+
+    void begin(Stage stage) {
+        stageStarts[stage.ordinal()] = SystemClock.elapsedRealtime();
+        if (!stage.crossThread && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(SECTION_PREFIX + stage.name());
+        }
+    }
+
+    void end(Stage stage) {
+        long start = stageStarts[stage.ordinal()];
+        if (start < 0) return;
+        stageDurations[stage.ordinal()] = SystemClock.elapsedRealtime() - start;
+        if (!stage.crossThread && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Ends the stages left open by an exception, keeping the systrace sections balanced.
+     */
+    void endOpenStages() {
+        for (Stage stage : Stage.values()) {
+            if (!stage.crossThread && stageStarts[stage.ordinal()] >= 0
+                    && stageDurations[stage.ordinal()] < 0) {
+                end(stage);
+            }
+        }
+    }
+
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    /**
+     * Releases one part of the pipeline, marking the end of the request when it was the last.
+     *
+     * @return true when the request ended
+     */
+    boolean finish() {
+        if (references.decrementAndGet() != 0)
+            return false;
+        totalDuration = SystemClock.elapsedRealtime() - startTime;
+        return true;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getTotalDuration() {
+        return totalDuration;
+    }
+
+    /**
+     * Duration of the stage in milliseconds, -1 if the request did not go through it.
+     */
+    public long getDuration(Stage stage) {
+        return stageDurations[stage.ordinal()];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(key).append(" total=").append(totalDuration).append("ms");
+        for (Stage stage : Stage.values()) {
+            long duration = stageDurations[stage.ordinal()];
+            if (duration >= 0) {
+                builder.append(String.format(Locale.US, " %s=%dms@+%d", stage.name().toLowerCase(Locale.US),
+                        duration, stageStarts[stage.ordinal()] - startTime));
+            }
+        }
+        return builder.toString();
+    }
+}
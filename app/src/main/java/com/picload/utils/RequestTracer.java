@@ -0,0 +1,99 @@
+package com.picload.utils;
+
+import android.util.Log;
+
+/**
+ * Optional per request tracing of the load pipeline. Stages are emitted as systrace sections and
+ * requests slower than the threshold are kept in a bounded ring buffer which can be dumped.
+ * <p>
+ * Disabled by default, {@link #start(String)} then returns null and every other call returns
+ * right away, so the pipeline only pays for a null check per stage.
+ */
+public class RequestTracer {
+
+    private static final String TAG = "RequestTracer";
+    private static final int SLOW_LOG_CAPACITY = 32;
+
+    private static volatile boolean enabled;
+    private static volatile long slowThresholdMs = 500;
+
+    private static final RequestTrace[] slowRequests = new RequestTrace[SLOW_LOG_CAPACITY];
+    private static int nextSlowRequest;
+    private static int slowRequestCount;
+
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * Requests taking at least this long are kept in the slow request log.
+     */
+    public static void setSlowThreshold(long thresholdMs) {
+        slowThresholdMs = thresholdMs;
+    }
+
+    /**
+     * Starts tracing a request, returns null when tracing is disabled.
+     */
+    public static RequestTrace start(String key) {
+        return enabled ? new RequestTrace(key) : null;
+    }
+
+    public static void begin(RequestTrace trace, RequestTrace.Stage stage) {
+        if (trace != null)
+            trace.begin(stage);
+    }
+
+    public static void end(RequestTrace trace, RequestTrace.Stage stage) {
+        if (trace != null)
+            trace.end(stage);
+    }
+
+    /**
+     * Ends the stages an exception interrupted.
+     */
+    public static void endOpenStages(RequestTrace trace) {
+        if (trace != null)
+            trace.endOpenStages();
+    }
+
+    /**
+     * Marks a new part of the pipeline working on the request, each retain must be matched by
+     * a call to finish.
+     */
+    public static void retain(RequestTrace trace) {
+        if (trace != null)
+            trace.retain();
+    }
+
+    /**
+     * Ends the request once every part working on it has finished, and keeps it in the slow
+     * request log if it took too long.
+     */
+    public static void finish(RequestTrace trace) {
+        if (trace == null)
+            return;
+        if (trace.finish() && trace.getTotalDuration() >= slowThresholdMs) {
+            synchronized (slowRequests) {
+                slowRequests[nextSlowRequest] = trace;
+                nextSlowRequest = (nextSlowRequest + 1) % SLOW_LOG_CAPACITY;
+                slowRequestCount = Math.min(slowRequestCount + 1, SLOW_LOG_CAPACITY);
+            }
+        }
+    }
+
+    /**
+     * Returns the slow requests kept in the log, oldest first, one request per line.
+     */
+    public static String dumpSlowRequests() {
+        StringBuilder builder = new StringBuilder();
+        synchronized (slowRequests) {
+            int oldest = (nextSlowRequest - slowRequestCount + SLOW_LOG_CAPACITY) % SLOW_LOG_CAPACITY;
+            for (int i = 0; i < slowRequestCount; i++) {
+                builder.append(slowRequests[(oldest + i) % SLOW_LOG_CAPACITY]).append('\n');
+            }
+        }
+        Log.d(TAG, builder.toString());
+        return builder.toString();
+    }
+}
@@ -0,0 +1,29 @@
+package com.picload.utils;
+
+import android.graphics.Bitmap;
+
+import com.picload.interfaces.Transformation;
+
+/**
+ * Scales the bitmap to the given size, ignoring its aspect ratio.
+ */
+public class ResizeTransformation implements Transformation {
+
+    private final int width;
+    private final int height;
+
+    public ResizeTransformation(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    @Override
+    public Bitmap transform(Bitmap source) {
+        return Utility.getResizedBitmap(source, height, width);
+    }
+
+    @Override
+    public String key() {
+        return "resize(" + width + "," + height + ")";
+    }
+}
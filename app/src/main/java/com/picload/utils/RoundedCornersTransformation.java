@@ -0,0 +1,37 @@
+package com.picload.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.graphics.Shader;
+
+import com.picload.interfaces.Transformation;
+
+/**
+ * Rounds the corners of the bitmap with the given radius in pixels, the corners are transparent.
+ */
+public class RoundedCornersTransformation implements Transformation {
+
+    private final float radius;
+
+    public RoundedCornersTransformation(float radius) {
+        this.radius = radius;
+    }
+
+    @Override
+    public Bitmap transform(Bitmap source) {
+        Bitmap output = Bitmap.createBitmap(source.getWidth(), source.getHeight(), Bitmap.Config.ARGB_8888);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setShader(new BitmapShader(source, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
+        new Canvas(output).drawRoundRect(new RectF(0, 0, source.getWidth(), source.getHeight()),
+                radius, radius, paint);
+        return output;
+    }
+
+    @Override
+    public String key() {
+        return "rounded(" + radius + ")";
+    }
+}
@@ -0,0 +1,165 @@
+package com.picload.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.picload.models.Tile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes tiles of large images straight from their cached file with BitmapRegionDecoder, so
+ * only the visible part of an image is ever held in memory.
+ * <p>
+ * A region decoder keeps the parsed image open, they are reused across tiles for the last few
+ * images and reopened when the cached file of the image is replaced. A decoder decodes one region
+ * at a time, tiles of different images are decoded concurrently.
+ */
+class TileDecoder {
+
+    private static final String TAG = "TileDecoder";
+    private static final int MAX_DECODERS = 2;
+
+    private final Map<String, OpenDecoder> decoders =
+            new LinkedHashMap<String, OpenDecoder>(4, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, OpenDecoder> eldest) {
+                    if (size() > MAX_DECODERS) {
+                        recycle(eldest.getValue().decoder);
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    /**
+     * Largest power of two sample size which does not show tiles below their resolution at the
+     * given scale, BitmapRegionDecoder rounds other sample sizes down anyway.
+     *
+     * @param scale displayed size of an image pixel, 1 at full resolution
+     */
+    static int sampleSizeFor(float scale) {
+        int sampleSize = 1;
+        while (scale * sampleSize * 2 <= 1f) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Tiles of the grid covering the visible region, the first row first.
+     *
+     * @param visible visible region in image pixels
+     */
+    static List<Tile> tilesFor(String url, Rect visible, int sampleSize) {
+        final List<Tile> tiles = new ArrayList<>();
+        if (visible.isEmpty())
+            return tiles;
+        final int span = Tile.SIZE * sampleSize;
+        final int firstColumn = Math.max(0, visible.left) / span;
+        final int firstRow = Math.max(0, visible.top) / span;
+        final int lastColumn = (Math.max(0, visible.right) - 1) / span;
+        final int lastRow = (Math.max(0, visible.bottom) - 1) / span;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                tiles.add(new Tile(url, sampleSize, column, row));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Decodes the tile from the image file.
+     *
+     * @return the tile bitmap, null if the tile is outside of the image or the file can't be decoded
+     */
+    Bitmap decode(File file, Tile tile) {
+        final BitmapRegionDecoder decoder = getDecoder(tile.getUrl(), file);
+        if (decoder == null)
+            return null;
+        synchronized (decoder) {
+            // Evicted by a decode of another image since it was looked up.
+            if (decoder.isRecycled())
+                return null;
+            final Rect region = new Rect(tile.getLeft(), tile.getTop(),
+                    tile.getLeft() + tile.getSpan(), tile.getTop() + tile.getSpan());
+            if (!region.intersect(0, 0, decoder.getWidth(), decoder.getHeight()))
+                return null;
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = tile.getSampleSize();
+            return decoder.decodeRegion(region, options);
+        }
+    }
+
+    /**
+     * Returns the open decoder of the url, reopening it when the file was replaced since, by a
+     * revalidation or a new download.
+     */
+    private BitmapRegionDecoder getDecoder(String url, File file) {
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+        synchronized (decoders) {
+            OpenDecoder open = decoders.get(url);
+            if (open != null && (open.lastModified != lastModified || open.length != length)) {
+                decoders.remove(url);
+                recycle(open.decoder);
+                open = null;
+            }
+            if (open == null) {
+                BitmapRegionDecoder decoder;
+                try {
+                    decoder = BitmapRegionDecoder.newInstance(file.getPath(), false);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error opening " + file + ": " + e.getMessage());
+                    return null;
+                }
+                if (decoder == null)
+                    return null;
+                open = new OpenDecoder(decoder, lastModified, length);
+                decoders.put(url, open);
+            }
+            return open.decoder;
+        }
+    }
+
+    /**
+     * Releases the decoders, used when the cached files go away.
+     */
+    void clear() {
+        synchronized (decoders) {
+            for (OpenDecoder open : decoders.values()) {
+                recycle(open.decoder);
+            }
+            decoders.clear();
+        }
+    }
+
+    private static void recycle(BitmapRegionDecoder decoder) {
+        synchronized (decoder) {
+            decoder.recycle();
+        }
+    }
+
+    /**
+     * A decoder along with the version of the file it was opened on.
+     */
+    private static final class OpenDecoder {
+        final BitmapRegionDecoder decoder;
+        final long lastModified;
+        final long length;
+
+        OpenDecoder(BitmapRegionDecoder decoder, long lastModified, long length) {
+            this.decoder = decoder;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.picload.utils;
+
+import com.picload.interfaces.TileCallback;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * One call of displayTiles, superseded by the next call for the same callback. Callbacks are
+ * usually views, they are only weakly referenced so a view going away without cancelling its
+ * tiles is not leaked by the queued work.
+ */
+final class TileRequest {
+
+    private static final Map<TileCallback, TileRequest> latest = new WeakHashMap<>();
+
+    private final WeakReference<TileCallback> callback;
+
+    private TileRequest(TileCallback callback) {
+        this.callback = new WeakReference<>(callback);
+    }
+
+    /**
+     * Starts a request for the callback, tiles of its previous request are dropped from now on.
+     */
+    static TileRequest start(TileCallback callback) {
+        TileRequest request = new TileRequest(callback);
+        synchronized (latest) {
+            latest.put(callback, request);
+        }
+        return request;
+    }
+
+    static void cancel(TileCallback callback) {
+        synchronized (latest) {
+            latest.remove(callback);
+        }
+    }
+
+    /**
+     * The callback while this is its latest request, null once superseded, cancelled or collected.
+     */
+    TileCallback currentCallback() {
+        TileCallback current = callback.get();
+        if (current == null)
+            return null;
+        synchronized (latest) {
+            return latest.get(current) == this ? current : null;
+        }
+    }
+}
@@ -9,23 +9,40 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.AsyncTask;
 import android.os.Build;
+import android.util.Log;
 import android.widget.Toast;
 
+import androidx.core.net.ConnectivityManagerCompat;
 
+
+import com.picload.cache.ImageCache;
+import com.picload.models.EntryMetadata;
+import com.picload.models.FailureType;
+import com.picload.models.ImageResponse;
 import com.picload.models.PhotoData;
+import com.picload.models.SizeVariant;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.Locale;
 import java.util.Random;
 
 
 public class Utility {
 
+    private static final String TAG = "Utility";
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
     public static <P, T extends AsyncTask<P, ?, ?>> void execute(T task) {
         execute(task, (P[]) null);
     }
@@ -63,6 +80,15 @@ public class Utility {
 
     }
 
+    /**
+     * Whether the active network is billed by usage, smaller images should be preferred then.
+     */
+    public static boolean isActiveNetworkMetered(Context context) {
+        ConnectivityManager connMgr = (ConnectivityManager) context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        return connMgr != null && ConnectivityManagerCompat.isActiveNetworkMetered(connMgr);
+    }
+
     /**
      * download and return bitmap for the given url
      * DO not call this method from main thread
@@ -71,22 +97,260 @@ public class Utility {
      * @return
      */
     public static Bitmap getBitmapFromURL(String src) {
+        return getImage(src, null).getBitmap();
+    }
+
+    /**
+     * download the image for the given url, sending the validators of the cached copy when
+     * present so an unchanged image is answered with 304 and no body.
+     * DO not call this method from main thread
+     *
+     * @param src        image url
+     * @param validators etag and last modified of the cached copy, may be null
+     * @return response holding the bitmap, or no bitmap when not modified or failed
+     */
+    public static ImageResponse getImage(String src, EntryMetadata validators) {
+        return getImage(src, validators, null);
+    }
+
+    /**
+     * Same as {@link #getImage(String, EntryMetadata)}, recording the connect, first byte,
+     * download and decode stages in the given trace.
+     *
+     * @param trace request trace, null when tracing is disabled
+     */
+    public static ImageResponse getImage(String src, EntryMetadata validators, RequestTrace trace) {
+        HttpURLConnection connection = null;
         try {
-            URL url = new URL(src); //new URL("http://s3-ap-southeast-1.amazonaws.com/bsbcms/music/1440680430882/srch_saregama_INH100901955.jpg");
-            HttpURLConnection connection = (HttpURLConnection) url
-                    .openConnection();
+            URL url = new URL(src);
+            connection = (HttpURLConnection) url.openConnection();
             connection.setDoInput(true);
+            if (validators != null) {
+                if (validators.getEtag() != null)
+                    connection.setRequestProperty("If-None-Match", validators.getEtag());
+                if (validators.getLastModified() != null)
+                    connection.setRequestProperty("If-Modified-Since", validators.getLastModified());
+            }
+            RequestTracer.begin(trace, RequestTrace.Stage.CONNECT);
             connection.connect();
-            InputStream input = connection.getInputStream();
-            Bitmap myBitmap = BitmapFactory.decodeStream(input);
-            return myBitmap;
+            RequestTracer.end(trace, RequestTrace.Stage.CONNECT);
+            RequestTracer.begin(trace, RequestTrace.Stage.FIRST_BYTE);
+            int code = connection.getResponseCode();
+            RequestTracer.end(trace, RequestTrace.Stage.FIRST_BYTE);
+            EntryMetadata metadata = new EntryMetadata(getExpiry(connection),
+                    connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return new ImageResponse((Bitmap) null, metadata, code);
+            }
+            if (code != HttpURLConnection.HTTP_OK) {
+                return new ImageResponse(FailureType.fromStatusCode(code), metadata, code);
+            }
+            Bitmap bitmap;
+            if (trace == null) {
+                bitmap = decodeStream(connection.getInputStream());
+            } else {
+                // Reading the body before decoding keeps network time and decode time apart, at
+                // the cost of a copy of the body only paid while tracing.
+                RequestTracer.begin(trace, RequestTrace.Stage.DOWNLOAD);
+                byte[] body = readFully(connection.getInputStream(), connection.getContentLength());
+                RequestTracer.end(trace, RequestTrace.Stage.DOWNLOAD);
+                RequestTracer.begin(trace, RequestTrace.Stage.DECODE);
+                bitmap = BitmapFactory.decodeByteArray(body, 0, body.length);
+                RequestTracer.end(trace, RequestTrace.Stage.DECODE);
+            }
+            if (bitmap == null) {
+                return new ImageResponse(FailureType.DECODE, metadata, code);
+            }
+            return new ImageResponse(bitmap, metadata, code);
+        } catch (SocketTimeoutException e) {
+            RequestTracer.endOpenStages(trace);
+            Log.w(TAG, "Timeout loading " + src);
+            return new ImageResponse(FailureType.TIMEOUT, null, -1);
         } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+            RequestTracer.endOpenStages(trace);
+            Log.w(TAG, "Error loading " + src + ": " + e.getMessage());
+            return new ImageResponse(FailureType.NETWORK, null, -1);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
         }
     }
 
-    public Bitmap getResizedBitmap(Bitmap bm, int newHeight, int newWidth) {
+    /**
+     * download the image body into the given file, resuming from the bytes already in it with a
+     * range request when the validators of the partial body are known. The If-Range validator makes
+     * the server send the whole body again if the image changed since.
+     * DO not call this method from main thread
+     *
+     * The validators of the body are saved as soon as the headers arrive, before the body is
+     * streamed, so a download interrupted by the process being killed can be resumed too.
+     *
+     * @param src   image url
+     * @param cache cache providing the partial file and its validators
+     * @param trace request trace, null when tracing is disabled
+     * @return response without bitmap, successful when the partial file holds the complete body.
+     */
+    public static ImageResponse downloadToFile(String src, ImageCache.Resumable cache, RequestTrace trace) {
+        return downloadToFile(src, cache, cache.getPartialFile(src), cache.getPartialMetadata(src), trace);
+    }
+
+    private static ImageResponse downloadToFile(String src, ImageCache.Resumable cache, File partialFile,
+                                                EntryMetadata partialValidators, RequestTrace trace) {
+        long offset = partialValidators != null && partialValidators.hasValidators() ? partialFile.length() : 0;
+        HttpURLConnection connection = null;
+        EntryMetadata metadata = null;
+        try {
+            URL url = new URL(src);
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setDoInput(true);
+            // Byte offsets are only meaningful on the identity encoding.
+            connection.setRequestProperty("Accept-Encoding", "identity");
+            if (offset > 0) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+                connection.setRequestProperty("If-Range", partialValidators.getEtag() != null
+                        ? partialValidators.getEtag() : partialValidators.getLastModified());
+            }
+            RequestTracer.begin(trace, RequestTrace.Stage.CONNECT);
+            connection.connect();
+            RequestTracer.end(trace, RequestTrace.Stage.CONNECT);
+            RequestTracer.begin(trace, RequestTrace.Stage.FIRST_BYTE);
+            int code = connection.getResponseCode();
+            RequestTracer.end(trace, RequestTrace.Stage.FIRST_BYTE);
+            metadata = new EntryMetadata(getExpiry(connection),
+                    connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+            boolean append = false;
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                String contentRange = connection.getHeaderField("Content-Range");
+                append = contentRange != null && contentRange.startsWith("bytes " + offset + "-");
+                if (!append) {
+                    throw new IOException("Unexpected Content-Range " + contentRange);
+                }
+            } else if (code == HTTP_RANGE_NOT_SATISFIABLE && offset > 0) {
+                // A previous attempt received the whole body and was killed before committing it,
+                // the range starts at the end of the image. The If-Range validator matched, the
+                // body is the current image.
+                if (isWholeLength(connection.getHeaderField("Content-Range"), offset)) {
+                    return new ImageResponse((Bitmap) null, partialValidators, code);
+                }
+                // The partial body does not match the image anymore, start over.
+                partialFile.delete();
+                connection.disconnect();
+                connection = null;
+                return downloadToFile(src, cache, partialFile, null, trace);
+            } else if (code != HttpURLConnection.HTTP_OK) {
+                return new ImageResponse(FailureType.fromStatusCode(code), metadata, code);
+            }
+            if (metadata.hasValidators())
+                cache.savePartialMetadata(src, metadata);
+            RequestTracer.begin(trace, RequestTrace.Stage.DOWNLOAD);
+            long expected = getContentLength(connection);
+            long written = copy(connection.getInputStream(), new FileOutputStream(partialFile, append));
+            RequestTracer.end(trace, RequestTrace.Stage.DOWNLOAD);
+            if (expected >= 0 && written != expected) {
+                throw new IOException("Body truncated, " + written + " of " + expected + " bytes");
+            }
+            return new ImageResponse((Bitmap) null, metadata, code);
+        } catch (SocketTimeoutException e) {
+            RequestTracer.endOpenStages(trace);
+            Log.w(TAG, "Timeout loading " + src);
+            return new ImageResponse(FailureType.TIMEOUT, metadata, -1);
+        } catch (IOException e) {
+            RequestTracer.endOpenStages(trace);
+            Log.w(TAG, "Error loading " + src + ": " + e.getMessage());
+            return new ImageResponse(FailureType.NETWORK, metadata, -1);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * True when the Content-Range of a 416 answer, "bytes *&#47;length", gives the length of the
+     * image as the given one.
+     */
+    private static boolean isWholeLength(String contentRange, long length) {
+        return contentRange != null && contentRange.trim().equals("bytes */" + length);
+    }
+
+    /**
+     * Content-Length as a long, the int getter overflows above 2GB.
+     */
+    private static long getContentLength(HttpURLConnection connection) {
+        String value = connection.getHeaderField("Content-Length");
+        if (value == null)
+            return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long copy(InputStream input, OutputStream output) throws IOException {
+        long written = 0;
+        try {
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+                written += read;
+            }
+            return written;
+        } finally {
+            input.close();
+            output.close();
+        }
+    }
+
+    private static Bitmap decodeStream(InputStream input) throws IOException {
+        try {
+            return BitmapFactory.decodeStream(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    private static byte[] readFully(InputStream input, int contentLength) throws IOException {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream(contentLength > 0 ? contentLength : 16 * 1024);
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Reads the expiry time from the Cache-Control max-age directive or the Expires header.
+     * Responses without any freshness information never expire.
+     */
+    private static long getExpiry(HttpURLConnection connection) {
+        long now = System.currentTimeMillis();
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.toLowerCase(Locale.US).split(",")) {
+                directive = directive.trim();
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    return now;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return now + Long.parseLong(directive.substring(8).trim()) * 1000;
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+        return connection.getExpiration();
+    }
+
+    public static Bitmap getResizedBitmap(Bitmap bm, int newHeight, int newWidth) {
         int width = bm.getWidth();
         int height = bm.getHeight();
         float scaleWidth = ((float) newWidth) / width;
@@ -167,11 +431,15 @@ public class Utility {
     }
 
     public static String getUrl(PhotoData data) {
+        return getUrl(data, SizeVariant.LARGE_SQUARE);
+    }
+
+    public static String getUrl(PhotoData data, SizeVariant variant) {
         return "https://farm" + data.getFarm() +
                 ".staticflickr.com/" + data.getServer() +
                 "/" + data.getId() +
                 "_" + data.getSecret() +
-                "_q.jpg";
+                "_" + variant.getSuffix() + ".jpg";
     }
 
     public static int generateRandomNumberFromGivenRange(int min, int max) {
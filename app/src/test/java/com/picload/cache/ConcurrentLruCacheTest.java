@@ -0,0 +1,181 @@
+package com.picload.cache;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentLruCacheTest {
+
+    private static final ConcurrentLruCache.Weigher<Integer> VALUE_WEIGHER =
+            new ConcurrentLruCache.Weigher<Integer>() {
+                @Override
+                public int weightOf(Integer value) {
+                    return value;
+                }
+            };
+
+    @Test
+    public void put_replacesValueAndWeight() {
+        ConcurrentLruCache<String, Integer> cache = new ConcurrentLruCache<>(100, VALUE_WEIGHER);
+        assertNull(cache.put("a", 10));
+        assertEquals(Integer.valueOf(10), cache.put("a", 4));
+        assertEquals(Integer.valueOf(4), cache.get("a"));
+        assertEquals(4, cache.size());
+        assertEquals(Integer.valueOf(4), cache.remove("a"));
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsed() {
+        ConcurrentLruCache<String, Integer> cache = new ConcurrentLruCache<>(3, VALUE_WEIGHER);
+        cache.put("a", 1);
+        cache.put("b", 1);
+        cache.put("c", 1);
+        cache.get("a");
+        cache.put("d", 1);
+        assertNull(cache.get("b"));
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void put_evictsUntilUnderCapacity() {
+        ConcurrentLruCache<String, Integer> cache = new ConcurrentLruCache<>(10, VALUE_WEIGHER);
+        cache.put("a", 3);
+        cache.put("b", 3);
+        cache.put("c", 3);
+        cache.put("d", 7);
+        assertEquals(Arrays.asList("d", "c"), cache.keysByRecency());
+        assertEquals(10, cache.size());
+    }
+
+    @Test
+    public void keysByRecency_mostRecentFirst() {
+        ConcurrentLruCache<String, Integer> cache = new ConcurrentLruCache<>(100, VALUE_WEIGHER);
+        cache.put("a", 1);
+        cache.put("b", 1);
+        cache.put("c", 1);
+        cache.get("b");
+        cache.get("a");
+        assertEquals(Arrays.asList("a", "b", "c"), cache.keysByRecency());
+    }
+
+    @Test
+    public void trimToSize_keepsMostRecent() {
+        ConcurrentLruCache<String, Integer> cache = new ConcurrentLruCache<>(100, VALUE_WEIGHER);
+        cache.put("a", 2);
+        cache.put("b", 3);
+        cache.put("c", 4);
+        cache.get("a");
+        cache.trimToSize(6);
+        assertEquals(Arrays.asList("a", "c"), cache.keysByRecency());
+        assertEquals(6, cache.size());
+        cache.evictAll();
+        assertEquals(0, cache.size());
+        assertTrue(cache.keysByRecency().isEmpty());
+    }
+
+    @Test
+    public void concurrentWrites_keepWeightConsistent() throws Exception {
+        assertConsistentAfterConcurrentWrites(new ConcurrentLruCache<Integer, Integer>(1000000, VALUE_WEIGHER), false);
+    }
+
+    @Test
+    public void concurrentWritesWithEviction_keepWeightConsistent() throws Exception {
+        ConcurrentLruCache<Integer, Integer> cache = new ConcurrentLruCache<>(100, VALUE_WEIGHER);
+        assertConsistentAfterConcurrentWrites(cache, false);
+        assertTrue(cache.size() <= 100);
+    }
+
+    @Test
+    public void writesDuringTrimAndKeysByRecency_areNotLeftBehind() throws Exception {
+        ConcurrentLruCache<Integer, Integer> cache = new ConcurrentLruCache<>(100, VALUE_WEIGHER);
+        assertConsistentAfterConcurrentWrites(cache, true);
+        assertTrue(cache.size() <= 100);
+    }
+
+    /**
+     * Runs random puts, replaces, removes and reads from several threads, optionally along with a
+     * thread holding the lock through trimToSize and keysByRecency, then checks the weight of the
+     * cache is the sum of the weights of the entries left. The weight is read before any other
+     * access, writes queued while another thread held the lock must already be accounted for.
+     */
+    private static void assertConsistentAfterConcurrentWrites(final ConcurrentLruCache<Integer, Integer> cache,
+                                                              boolean withLockHolder) throws Exception {
+        final int threadCount = 8;
+        final int keyCount = 64;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final Random random = new Random(t);
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 20000; i++) {
+                            int key = random.nextInt(keyCount);
+                            int operation = random.nextInt(4);
+                            if (operation == 0)
+                                cache.remove(key);
+                            else if (operation == 1)
+                                cache.get(key);
+                            else
+                                cache.put(key, 1 + random.nextInt(10));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        // Stops with the last writer, so its last writes may be queued while this holds the lock.
+        Thread lockHolder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (done.getCount() > 0) {
+                    cache.keysByRecency();
+                    cache.trimToSize(Long.MAX_VALUE);
+                }
+            }
+        });
+        if (withLockHolder)
+            lockHolder.start();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (withLockHolder)
+            lockHolder.join();
+        assertNull(failure.get());
+        long size = cache.size();
+
+        long weight = 0;
+        int entries = 0;
+        for (int key = 0; key < keyCount; key++) {
+            Integer value = cache.get(key);
+            if (value != null) {
+                weight += value;
+                entries++;
+            }
+        }
+        assertEquals(weight, size);
+        List<Integer> keys = cache.keysByRecency();
+        assertEquals(entries, keys.size());
+        for (Integer key : keys) {
+            assertNotNull(cache.get(key));
+        }
+    }
+}
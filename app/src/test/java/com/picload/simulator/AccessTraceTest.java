@@ -0,0 +1,124 @@
+package com.picload.simulator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class AccessTraceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void read_returnsRecordsInOrder() throws IOException {
+        File file = folder.newFile();
+        AccessTraceRecorder recorder = new AccessTraceRecorder(file);
+        recorder.record("a", 100, AccessTrace.TIER_NETWORK);
+        recorder.record("b", 0, AccessTrace.TIER_NETWORK);
+        recorder.record("a", 100, AccessTrace.TIER_MEMORY);
+        recorder.close();
+
+        assertEquals(AccessTrace.HEADER_SIZE + 3 * AccessTrace.RECORD_SIZE, file.length());
+        AccessTrace trace = AccessTrace.read(file);
+        assertEquals(3, trace.size());
+        assertEquals(AccessTrace.hash("a"), trace.keyAt(0));
+        assertEquals(100, trace.sizeAt(0));
+        assertEquals(AccessTrace.TIER_NETWORK, trace.tierAt(0));
+        assertEquals(AccessTrace.hash("b"), trace.keyAt(1));
+        assertEquals(0, trace.sizeAt(1));
+        assertEquals(AccessTrace.TIER_MEMORY, trace.tierAt(2));
+    }
+
+    @Test
+    public void read_ignoresIncompleteLastRecord() throws IOException {
+        File file = folder.newFile();
+        AccessTraceRecorder recorder = new AccessTraceRecorder(file);
+        recorder.record("a", 1, AccessTrace.TIER_DISK);
+        recorder.record("b", 2, AccessTrace.TIER_DISK);
+        recorder.close();
+        truncate(file, file.length() - 5);
+
+        AccessTrace trace = AccessTrace.read(file);
+        assertEquals(1, trace.size());
+        assertEquals(AccessTrace.hash("a"), trace.keyAt(0));
+    }
+
+    @Test
+    public void recorder_appendsAfterIncompleteRecord() throws IOException {
+        File file = folder.newFile();
+        AccessTraceRecorder recorder = new AccessTraceRecorder(file);
+        recorder.record("a", 1, AccessTrace.TIER_DISK);
+        recorder.record("b", 2, AccessTrace.TIER_DISK);
+        recorder.close();
+        truncate(file, file.length() - 5);
+
+        recorder = new AccessTraceRecorder(file);
+        recorder.record("c", 3, AccessTrace.TIER_MEMORY);
+        recorder.close();
+
+        AccessTrace trace = AccessTrace.read(file);
+        assertEquals(2, trace.size());
+        assertEquals(AccessTrace.hash("a"), trace.keyAt(0));
+        assertEquals(AccessTrace.hash("c"), trace.keyAt(1));
+        assertEquals(3, trace.sizeAt(1));
+        assertEquals(AccessTrace.TIER_MEMORY, trace.tierAt(1));
+    }
+
+    @Test
+    public void recorder_rewritesIncompleteHeader() throws IOException {
+        File file = folder.newFile();
+        FileOutputStream output = new FileOutputStream(file);
+        output.write(new byte[]{0x50, 0x4c, 0x54});
+        output.close();
+
+        AccessTraceRecorder recorder = new AccessTraceRecorder(file);
+        recorder.record("a", 1, AccessTrace.TIER_DISK);
+        recorder.close();
+
+        AccessTrace trace = AccessTrace.read(file);
+        assertEquals(1, trace.size());
+        assertEquals(AccessTrace.hash("a"), trace.keyAt(0));
+    }
+
+    @Test
+    public void recorder_flushWritesBufferedRecords() throws IOException {
+        File file = folder.newFile();
+        AccessTraceRecorder recorder = new AccessTraceRecorder(file);
+        recorder.record("a", 1, AccessTrace.TIER_DISK);
+        recorder.flush();
+
+        assertEquals(1, AccessTrace.read(file).size());
+        recorder.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void read_rejectsOtherFiles() throws IOException {
+        File file = folder.newFile();
+        FileOutputStream output = new FileOutputStream(file);
+        output.write(new byte[AccessTrace.HEADER_SIZE + AccessTrace.RECORD_SIZE]);
+        output.close();
+        AccessTrace.read(file);
+    }
+
+    @Test
+    public void hash_isFnv1a() {
+        assertEquals(0xcbf29ce484222325L, AccessTrace.hash(""));
+        assertEquals(0xaf63dc4c8601ec8cL, AccessTrace.hash("a"));
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.picload.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Replays a recorded access trace against every policy at many capacities in parallel and prints
+ * the hit ratio and byte hit ratio curves as CSV.
+ * <p>
+ * A desktop tool kept with the unit tests so it does not ship in the APK, runs on a plain JVM:
+ * <pre>
+ * javac -d out app/src/main/java/com/picload/simulator/*.java \
+ *     app/src/test/java/com/picload/simulator/CacheSimulator.java \
+ *     app/src/test/java/com/picload/simulator/SimulatedCache.java
+ * java -cp out com.picload.simulator.CacheSimulator access.trace [capacitiesInKb] [diskRatio]
+ * </pre>
+ * Capacities are a comma separated list, powers of two from 512KB to 256MB by default. The disk
+ * ratio scales the decoded sizes of the trace down to compressed file sizes for the DISK_LRU
+ * policy, 0.1 by default.
+ */
+public class CacheSimulator {
+
+    private static final double DEFAULT_DISK_RATIO = 0.1;
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        if (args.length < 1) {
+            System.err.println("Usage: CacheSimulator <trace file> [capacitiesInKb] [diskRatio]");
+            System.exit(1);
+        }
+        AccessTrace trace = AccessTrace.read(new File(args[0]));
+        long[] capacities = args.length > 1 ? parseCapacities(args[1]) : defaultCapacities();
+        double diskRatio = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_DISK_RATIO;
+
+        System.out.println("policy,capacity_kb,requests,hits,hit_ratio,byte_hit_ratio");
+        for (Result result : simulate(trace, capacities, diskRatio)) {
+            System.out.println(result);
+        }
+    }
+
+    /**
+     * Runs one replay per policy and capacity on a thread pool.
+     *
+     * @return results grouped by policy, by increasing capacity
+     */
+    public static List<Result> simulate(final AccessTrace trace, long[] capacities, final double diskRatio)
+            throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (final SimulatedCache.Policy policy : SimulatedCache.Policy.values()) {
+                for (final long capacity : capacities) {
+                    futures.add(executor.submit(new Callable<Result>() {
+                        @Override
+                        public Result call() {
+                            double ratio = policy == SimulatedCache.Policy.DISK_LRU ? diskRatio : 1;
+                            return replay(trace, policy, capacity, ratio);
+                        }
+                    }));
+                }
+            }
+            List<Result> results = new ArrayList<>(futures.size());
+            for (Future<Result> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    static Result replay(AccessTrace trace, SimulatedCache.Policy policy, long capacity, double sizeRatio) {
+        SimulatedCache cache = new SimulatedCache(policy, capacity);
+        Result result = new Result(policy, capacity);
+        for (int i = 0; i < trace.size(); i++) {
+            int size = trace.sizeAt(i);
+            if (size <= 0) {
+                // Failed loads have no size and are never cached.
+                continue;
+            }
+            boolean hit = cache.access(trace.keyAt(i), (int) Math.max(1, size * sizeRatio));
+            result.requests++;
+            result.bytes += size;
+            if (hit) {
+                result.hits++;
+                result.hitBytes += size;
+            }
+        }
+        return result;
+    }
+
+    private static long[] parseCapacities(String value) {
+        String[] parts = value.split(",");
+        long[] capacities = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            capacities[i] = Long.parseLong(parts[i].trim()) * 1024;
+        }
+        return capacities;
+    }
+
+    private static long[] defaultCapacities() {
+        long[] capacities = new long[10];
+        for (int i = 0; i < capacities.length; i++) {
+            capacities[i] = (512L * 1024) << i;
+        }
+        return capacities;
+    }
+
+    public static class Result {
+        final SimulatedCache.Policy policy;
+        final long capacity;
+        long requests;
+        long hits;
+        long bytes;
+        long hitBytes;
+
+        Result(SimulatedCache.Policy policy, long capacity) {
+            this.policy = policy;
+            this.capacity = capacity;
+        }
+
+        public double getHitRatio() {
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+
+        public double getByteHitRatio() {
+            return bytes == 0 ? 0 : (double) hitBytes / bytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s,%d,%d,%d,%.4f,%.4f", policy, capacity / 1024,
+                    requests, hits, getHitRatio(), getByteHitRatio());
+        }
+    }
+}
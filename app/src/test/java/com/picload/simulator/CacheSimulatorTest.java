@@ -0,0 +1,144 @@
+package com.picload.simulator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CacheSimulatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void lru_evictsLeastRecentlyUsed() {
+        SimulatedCache cache = new SimulatedCache(SimulatedCache.Policy.LRU, 3);
+        assertFalse(cache.access(1, 1));
+        assertFalse(cache.access(2, 1));
+        assertFalse(cache.access(3, 1));
+        assertTrue(cache.access(1, 1));
+        assertFalse(cache.access(4, 1));
+        assertTrue(cache.access(1, 1));
+        assertTrue(cache.access(3, 1));
+        assertFalse(cache.access(2, 1));
+    }
+
+    @Test
+    public void fifo_evictsFirstInsertedDespiteHits() {
+        SimulatedCache cache = new SimulatedCache(SimulatedCache.Policy.FIFO, 3);
+        cache.access(1, 1);
+        cache.access(2, 1);
+        cache.access(3, 1);
+        assertTrue(cache.access(1, 1));
+        assertFalse(cache.access(4, 1));
+        assertFalse(cache.access(1, 1));
+    }
+
+    @Test
+    public void evictsByBytes() {
+        SimulatedCache cache = new SimulatedCache(SimulatedCache.Policy.LRU, 10);
+        cache.access(1, 4);
+        cache.access(2, 4);
+        cache.access(3, 4);
+        assertFalse(cache.access(1, 4));
+        assertTrue(cache.access(3, 4));
+    }
+
+    @Test
+    public void diskLru_boundsItemCount() {
+        SimulatedCache cache = new SimulatedCache(SimulatedCache.Policy.DISK_LRU, Long.MAX_VALUE);
+        for (int key = 0; key <= SimulatedCache.DISK_MAX_ITEMS; key++) {
+            cache.access(key, 1);
+        }
+        assertTrue(cache.access(SimulatedCache.DISK_MAX_ITEMS, 1));
+        assertTrue(cache.access(1, 1));
+        assertFalse(cache.access(0, 1));
+    }
+
+    @Test
+    public void diskLru_boundsRemovalsPerInsert() {
+        SimulatedCache cache = new SimulatedCache(SimulatedCache.Policy.DISK_LRU, 10);
+        for (int key = 0; key < 10; key++) {
+            cache.access(key, 1);
+        }
+        cache.access(10, 10);
+        // Only the eldest DISK_MAX_REMOVALS entries make room, the cache stays over capacity.
+        assertTrue(cache.access(SimulatedCache.DISK_MAX_REMOVALS, 1));
+        assertTrue(cache.access(9, 1));
+        assertTrue(cache.access(10, 10));
+
+        SimulatedCache lru = new SimulatedCache(SimulatedCache.Policy.LRU, 10);
+        for (int key = 0; key < 10; key++) {
+            lru.access(key, 1);
+        }
+        lru.access(10, 10);
+        assertFalse(lru.access(9, 1));
+    }
+
+    @Test
+    public void replay_countsHitsAndBytesAndSkipsFailures() throws IOException {
+        AccessTrace trace = trace(
+                "a", 100,
+                "b", 50,
+                "a", 100,
+                "c", 0,
+                "b", 50,
+                "a", 100);
+        CacheSimulator.Result result = CacheSimulator.replay(trace, SimulatedCache.Policy.LRU, 1000, 1);
+        assertEquals(5, result.requests);
+        assertEquals(3, result.hits);
+        assertEquals(400, result.bytes);
+        assertEquals(250, result.hitBytes);
+        assertEquals(0.6, result.getHitRatio(), 1e-9);
+        assertEquals(0.625, result.getByteHitRatio(), 1e-9);
+    }
+
+    @Test
+    public void replay_scalesSizesToCapacity() throws IOException {
+        AccessTrace trace = trace("a", 100, "b", 100, "a", 100);
+        // Decoded sizes scaled down ten times fit a cache of 20 bytes.
+        CacheSimulator.Result scaled = CacheSimulator.replay(trace, SimulatedCache.Policy.DISK_LRU, 20, 0.1);
+        assertEquals(1, scaled.hits);
+        assertEquals(100, scaled.hitBytes);
+        CacheSimulator.Result unscaled = CacheSimulator.replay(trace, SimulatedCache.Policy.DISK_LRU, 20, 1);
+        assertEquals(0, unscaled.hits);
+    }
+
+    @Test
+    public void simulate_returnsEveryPolicyAndCapacity() throws Exception {
+        AccessTrace trace = trace("a", 10, "b", 10, "a", 10, "c", 10, "b", 10);
+        long[] capacities = {10, 20, 30};
+        List<CacheSimulator.Result> results = CacheSimulator.simulate(trace, capacities, 1);
+        assertEquals(SimulatedCache.Policy.values().length * capacities.length, results.size());
+        int index = 0;
+        for (SimulatedCache.Policy policy : SimulatedCache.Policy.values()) {
+            long previousHits = -1;
+            for (long capacity : capacities) {
+                CacheSimulator.Result result = results.get(index++);
+                assertEquals(policy, result.policy);
+                assertEquals(capacity, result.capacity);
+                assertEquals(5, result.requests);
+                assertTrue(result.hits >= previousHits);
+                previousHits = result.hits;
+            }
+        }
+    }
+
+    /**
+     * Writes a trace of key and size pairs, served from the network, and reads it back.
+     */
+    private AccessTrace trace(Object... accesses) throws IOException {
+        File file = folder.newFile();
+        AccessTraceRecorder recorder = new AccessTraceRecorder(file);
+        for (int i = 0; i < accesses.length; i += 2) {
+            recorder.record((String) accesses[i], (Integer) accesses[i + 1], AccessTrace.TIER_NETWORK);
+        }
+        recorder.close();
+        return AccessTrace.read(file);
+    }
+}
@@ -0,0 +1,74 @@
+package com.picload.simulator;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Key and size only model of a cache, replaying the eviction rules of the real implementations
+ * without holding any bitmap.
+ */
+class SimulatedCache {
+
+    enum Policy {
+        /**
+         * Byte bounded LRU, like InMemoryCache.
+         */
+        LRU,
+        /**
+         * Byte bounded first in first out, as a baseline for LRU.
+         */
+        FIFO,
+        /**
+         * DiskLruCache rules: LRU bounded by bytes and by item count, evicting at most
+         * DISK_MAX_REMOVALS entries per insert.
+         */
+        DISK_LRU
+    }
+
+    static final int DISK_MAX_ITEMS = 64;
+    static final int DISK_MAX_REMOVALS = 4;
+
+    private final Policy policy;
+    private final long capacity;
+    private final LinkedHashMap<Long, Integer> entries;
+    private long used;
+
+    SimulatedCache(Policy policy, long capacity) {
+        this.policy = policy;
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, policy != Policy.FIFO);
+    }
+
+    /**
+     * Replays one access, inserting the key on a miss.
+     *
+     * @return true on a hit
+     */
+    boolean access(long key, int size) {
+        if (entries.get(key) != null) {
+            return true;
+        }
+        entries.put(key, size);
+        used += size;
+        evict();
+        return false;
+    }
+
+    private void evict() {
+        int removals = 0;
+        Iterator<Map.Entry<Long, Integer>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext() && isOverCapacity()) {
+            if (policy == Policy.DISK_LRU && removals == DISK_MAX_REMOVALS) {
+                break;
+            }
+            used -= iterator.next().getValue();
+            iterator.remove();
+            removals++;
+        }
+    }
+
+    private boolean isOverCapacity() {
+        return used > capacity || (policy == Policy.DISK_LRU && entries.size() > DISK_MAX_ITEMS);
+    }
+}